@@ -1,14 +1,16 @@
+import java.nio.ByteBuffer;
+
 public class BackupChannelWorker extends ChannelWorker {
-    public BackupChannelWorker(PeerService peer, byte[] msg, int msgLen) {
-        super(peer, msg, msgLen);
+    public BackupChannelWorker(PeerService peer, ByteBuffer msg, int msgLen, BufferPool pool) {
+        super(peer, msg, msgLen, pool);
     }
 
     @Override
-    public void run() {
+    protected void process() {
         try {
-            Message msg = Message.parseMessage(super.msg,msgLen);
+            MessageView msg = MessageView.local().wrap(this.msg, msgLen);
 
-            if (Integer.parseInt(msg.getSenderId()) == peer.peerId) {
+            if (msg.getSenderId() == peer.peerId) {
                 return;
             }
 
@@ -25,9 +27,8 @@ public class BackupChannelWorker extends ChannelWorker {
         }
     }
 
-    private void parsePutchunk(Message msg) {
+    private void parsePutchunk(MessageView msg) {
         System.out.println("System received PUTCHUNK message.");
-        if(Integer.parseInt(msg.getSenderId()) != peer.peerId)
-            peer.store(msg.getFileId(), Integer.parseInt(msg.getChunckNo()), msg.getBody(), msg.getBody().length,Integer.parseInt(msg.getReplicationDeg()));
+        peer.store(msg.getFileId(), msg.getChunkNo(), msg.getBody(), msg.getReplicationDeg());
     }
 }
@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the chunks of a file being backed up. The chunks are pulled from the
+ * chunk source as the congestion window allows: a chunk leaves the window when
+ * it reaches the desired replication degree (or its PUTCHUNK repetitions run
+ * out), which opens it, and every repetition of a PUTCHUNK closes it.
+ * Once every chunk is done the source is dropped, so the file is no longer
+ * mapped while the pipeline is kept for its statistics. A pipeline is
+ * cancelled when its file is deleted, so no PUTCHUNK of the file follows
+ * the DELETE.
+ */
+public class BackupPipeline implements Runnable, PutchunkRepeater.Listener {
+  static final int INITIAL_WINDOW = Integer.getInteger("sdis.backup.window.initial", 4);
+  static final int MAX_WINDOW = Integer.getInteger("sdis.backup.window", 64);
+  // Same as the first repetition delay, losses of the same window count once
+  static final long LOSS_INTERVAL = 1000;
+
+  final private PeerService peer;
+  final private FileData fd;
+  private volatile ChunkSource source;
+  final private int chunkCount;
+  final private long size;
+  final private CongestionWindow window;
+
+  final private AtomicInteger replicated;
+  final private AtomicInteger failed;
+  final private AtomicInteger retransmissions;
+  final private AtomicLong bytesReplicated;
+  private volatile long startTime;
+  private volatile long endTime;
+  private volatile boolean cancelled;
+  private Thread sender;
+
+  public BackupPipeline(PeerService peer, FileData fd, ChunkSource source) {
+    this.peer = peer;
+    this.fd = fd;
+    this.source = source;
+    this.chunkCount = source.getChunkCount();
+    this.size = source.getSize();
+    this.window = new CongestionWindow(INITIAL_WINDOW, 1, MAX_WINDOW, LOSS_INTERVAL);
+    this.replicated = new AtomicInteger();
+    this.failed = new AtomicInteger();
+    this.retransmissions = new AtomicInteger();
+    this.bytesReplicated = new AtomicLong();
+  }
+
+  /**
+   * Send the chunks on a thread of the pipeline
+   */
+  public void start() {
+    sender = new Thread(this, "backup-" + fd.id.substring(0, 8));
+    sender.start();
+  }
+
+  /**
+   * Stop sending the chunks and repeating the PUTCHUNKs already sent.
+   * Returns once the pipeline sends nothing more
+   */
+  public void cancel() {
+    cancelled = true;
+    sender.interrupt();
+    try {
+      sender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (int nr = 0; nr < chunkCount; nr++) {
+      peer.cancelRepeater(fd.id, nr);
+    }
+    source = null;
+  }
+
+  @Override
+  public void run() {
+    startTime = System.currentTimeMillis();
+
+    ChunkSource source = this.source;
+    for (int nr = 0; nr < chunkCount && !cancelled; nr++) {
+      try {
+        window.acquire();
+      } catch (InterruptedException e) {
+        System.out.println("Backup of " + fd.file.getPath() + " interrupted.");
+        return;
+      }
+
+      peer.sendPutchunk(fd, nr, source.getChunk(nr), this);
+    }
+  }
+
+  @Override
+  public void retried(int nr) {
+    retransmissions.incrementAndGet();
+    window.lost();
+  }
+
+  @Override
+  public void finished(int nr, boolean replicated) {
+    if (replicated) {
+      this.replicated.incrementAndGet();
+      bytesReplicated.addAndGet(FileData.chunkSize(size, nr));
+      window.acked();
+    } else {
+      failed.incrementAndGet();
+      window.release();
+    }
+
+    if (this.replicated.get() + failed.get() == chunkCount) {
+      // The repetitions are over, nothing reads the mapping any more
+      source = null;
+      endTime = System.currentTimeMillis();
+      System.out.println("Backup of " + fd.file.getPath() + " finished: " + this);
+    }
+  }
+
+  public boolean isDone() {
+    return endTime != 0;
+  }
+
+  /**
+   * Throughput of the chunks that reached the desired replication degree
+   *
+   * @return bytes per second
+   */
+  public long getThroughput() {
+    long end = isDone() ? endTime : System.currentTimeMillis();
+    long elapsed = Math.max(1, end - startTime);
+    return bytesReplicated.get() * 1000 / elapsed;
+  }
+
+  @Override
+  public String toString() {
+    return replicated.get() + "/" + chunkCount + " chunks replicated, "
+            + failed.get() + " failed, "
+            + retransmissions.get() + " retransmissions, "
+            + "window " + window.getWindow() + ", "
+            + getThroughput() / 1000 + " KB/s";
+  }
+}
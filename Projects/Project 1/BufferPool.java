@@ -0,0 +1,121 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size pool of receive buffers. Each received datagram leases its own
+ * buffer, which is handed to the worker that parses it and returned to the
+ * pool once the worker is done with it.
+ */
+public class BufferPool {
+  // Largest UDP payload over IPv4 (65535 - 8 byte UDP header - 20 byte IP header)
+  static final int MAX_DATAGRAM_SIZE = 65507;
+
+  final private ArrayBlockingQueue<ByteBuffer> free;
+  final private int bufferSize;
+  final private boolean direct;
+  final private long maxWaitMillis;
+
+  final private AtomicLong leases;
+  final private AtomicLong waits;
+  final private AtomicLong exhaustions;
+
+  /**
+   * Constructor for BufferPool class. All the buffers are allocated up front so
+   * the receive loop never allocates while the pool has free buffers.
+   * When the pool is empty a lease waits up to maxWaitMillis for a buffer to
+   * be released, after that it counts as an exhaustion and a temporary buffer
+   * is allocated, which is dropped when released.
+   *
+   * @param capacity      number of buffers in the pool
+   * @param bufferSize    size of each buffer
+   * @param direct        true to allocate the buffers off-heap
+   * @param maxWaitMillis time to wait for a free buffer before allocating one
+   */
+  public BufferPool(int capacity, int bufferSize, boolean direct, long maxWaitMillis) {
+    this.free = new ArrayBlockingQueue<>(capacity);
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+    this.maxWaitMillis = maxWaitMillis;
+    this.leases = new AtomicLong();
+    this.waits = new AtomicLong();
+    this.exhaustions = new AtomicLong();
+
+    for (int i = 0; i < capacity; i++) {
+      free.add(allocate());
+    }
+  }
+
+  private ByteBuffer allocate() {
+    return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+  }
+
+  /**
+   * Lease a cleared buffer from the pool. The caller owns the buffer until it
+   * calls release.
+   *
+   * @return buffer ready to receive a datagram
+   */
+  public ByteBuffer lease() {
+    leases.incrementAndGet();
+
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      waits.incrementAndGet();
+      try {
+        buffer = free.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (buffer == null) {
+        exhaustions.incrementAndGet();
+        buffer = allocate();
+      }
+    }
+
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool. Buffers allocated when the pool was exhausted
+   * are discarded if the pool is already full.
+   *
+   * @param buffer leased buffer
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+
+    buffer.clear();
+    free.offer(buffer);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getFree() {
+    return free.size();
+  }
+
+  public long getLeases() {
+    return leases.get();
+  }
+
+  public long getWaits() {
+    return waits.get();
+  }
+
+  public long getExhaustions() {
+    return exhaustions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "leases=" + getLeases() + " waits=" + getWaits() + " exhaustions=" + getExhaustions() + " free=" + getFree();
+  }
+}
@@ -1,11 +1,40 @@
+import java.nio.ByteBuffer;
+
 public abstract class ChannelWorker implements Runnable{
-    protected byte[] msg;
+    protected ByteBuffer msg;
     protected PeerService peer;
     protected int msgLen;
+    protected BufferPool pool;
 
-    public ChannelWorker(PeerService peer,byte[] msg, int msgLen) {
+    public ChannelWorker(PeerService peer, ByteBuffer msg, int msgLen, BufferPool pool) {
         this.msg = msg;
         this.peer = peer;
         this.msgLen = msgLen;
+        this.pool = pool;
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.process();
+        }
+        finally {
+            this.release();
+        }
     }
+
+    /**
+     * Returns the message buffer to the pool it was leased from
+     */
+    public void release() {
+        if (this.msg != null) {
+            this.pool.release(this.msg);
+            this.msg = null;
+        }
+    }
+
+    /**
+     * Parses and handles the message. The message buffer is only valid until this returns
+     */
+    abstract protected void process();
 }
@@ -1,19 +1,21 @@
+import java.nio.ByteBuffer;
+
 /**
  * Creates a new worker. Returns null for invalid type
  */
 public class ChannelWorkerFactory {
     public enum  WorkerType {BACKUP,CONTROL,RESTORE};
 
-    static public ChannelWorker createWorker(byte[] msg, int msgLen, PeerService peer, WorkerType type) {
+    static public ChannelWorker createWorker(ByteBuffer msg, int msgLen, BufferPool pool, PeerService peer, WorkerType type) {
         switch (type) {
             case BACKUP:
-                return new BackupChannelWorker(peer, msg, msgLen);
+                return new BackupChannelWorker(peer, msg, msgLen, pool);
 
             case CONTROL:
-                return new ControlChannelWorker(peer, msg, msgLen);
+                return new ControlChannelWorker(peer, msg, msgLen, pool);
 
             case RESTORE:
-                return new RestoreChannelWorker(peer, msg, msgLen);
+                return new RestoreChannelWorker(peer, msg, msgLen, pool);
 
             default:
                 return null;
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size bitmap of chunk numbers, updated with compare-and-set. Claiming
+ * a chunk sets its bit and tells whether this call set it, so when several
+ * threads get the same chunk exactly one of them wins, without a lock.
+ */
+public class ChunkBitmap {
+  final private AtomicLongArray words;
+  final private int size;
+
+  /**
+   * @param size number of chunks
+   */
+  public ChunkBitmap(int size) {
+    this.size = size;
+    this.words = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+  }
+
+  /**
+   * Set the bit of a chunk
+   *
+   * @param nr chunk number
+   * @return true if it was clear, false if it was already set or out of range
+   */
+  public boolean claim(int nr) {
+    if (nr < 0 || nr >= size) {
+      return false;
+    }
+
+    int word = nr >>> 6;
+    long mask = 1L << nr;
+    long current;
+    do {
+      current = words.get(word);
+      if ((current & mask) != 0) {
+        return false;
+      }
+    } while (!words.compareAndSet(word, current, current | mask));
+    return true;
+  }
+
+  /**
+   * Clear the bit of a chunk, so it can be claimed again
+   *
+   * @param nr chunk number
+   */
+  public void clear(int nr) {
+    if (nr < 0 || nr >= size) {
+      return;
+    }
+
+    int word = nr >>> 6;
+    long mask = 1L << nr;
+    long current;
+    do {
+      current = words.get(word);
+    } while ((current & mask) != 0 && !words.compareAndSet(word, current, current & ~mask));
+  }
+
+  public boolean get(int nr) {
+    return nr >= 0 && nr < size && (words.get(nr >>> 6) & (1L << nr)) != 0;
+  }
+
+  /**
+   * First chunk whose bit is clear
+   *
+   * @param from chunk number to start at
+   * @return chunk number, or -1 if every bit from there is set
+   */
+  public int nextClear(int from) {
+    for (int nr = Math.max(0, from); nr < size; nr++) {
+      long word = ~words.get(nr >>> 6) >>> (nr & 63);
+      if (word == 0) {
+        // Rest of the word is set
+        nr |= 63;
+        continue;
+      }
+      nr += Long.numberOfTrailingZeros(word);
+      return nr < size ? nr : -1;
+    }
+    return -1;
+  }
+
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Bounded off-heap cache of chunk payloads. The cache is a single direct
+ * buffer split in slots of MAX_CHUNK_SIZE bytes, so its size is independent
+ * of the heap and of the storage quota. When it is full a slot is evicted
+ * with the CLOCK algorithm: the hand skips (and clears) the slots that were
+ * used since it last passed by them.
+ * Payloads are copied in and out of the cache, a slot is never handed out,
+ * so an eviction can not change the bytes a caller is sending.
+ */
+public class ChunkCache {
+  final private ByteBuffer memory;
+  final private int slotSize;
+  final private int slots;
+
+  final private HashMap<ChunkKey, Integer> index;
+  final private ChunkKey[] keys;
+  final private int[] lengths;
+  final private boolean[] referenced;
+  private int hand;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param capacity size of the cache in bytes
+   * @param slotSize size of the biggest payload
+   */
+  public ChunkCache(long capacity, int slotSize) {
+    // A direct buffer can not be larger than 2 GB
+    long maxSlots = Math.min(capacity, Integer.MAX_VALUE) / slotSize;
+
+    this.slotSize = slotSize;
+    this.slots = (int) maxSlots;
+    this.memory = ByteBuffer.allocateDirect(this.slots * slotSize);
+    this.index = new HashMap<>();
+    this.keys = new ChunkKey[this.slots];
+    this.lengths = new int[this.slots];
+    this.referenced = new boolean[this.slots];
+    this.hand = 0;
+  }
+
+  /**
+   * Copy the cached payload into dst
+   *
+   * @param key chunk key
+   * @param dst buffer with room for the payload, it is filled from its position
+   * @return false if the chunk is not in the cache
+   */
+  public synchronized boolean get(ChunkKey key, ByteBuffer dst) {
+    Integer slot = index.get(key);
+    if (slot == null) {
+      misses++;
+      return false;
+    }
+
+    hits++;
+    referenced[slot] = true;
+    dst.put(slotBuffer(slot, lengths[slot]));
+    return true;
+  }
+
+  /**
+   * Copy a payload into the cache, evicting another one if needed
+   *
+   * @param key     chunk key
+   * @param payload payload, from its position to its limit, which is not consumed
+   */
+  public synchronized void put(ChunkKey key, ByteBuffer payload) {
+    if (slots == 0 || payload.remaining() > slotSize) {
+      return;
+    }
+
+    Integer slot = index.get(key);
+    if (slot == null) {
+      slot = this.findSlot();
+      if (keys[slot] != null) {
+        index.remove(keys[slot]);
+        evictions++;
+      }
+      keys[slot] = key;
+      index.put(key, slot);
+    }
+
+    lengths[slot] = payload.remaining();
+    referenced[slot] = true;
+    slotBuffer(slot, slotSize).put(payload.duplicate());
+  }
+
+  /**
+   * Drop a payload from the cache
+   *
+   * @param key chunk key
+   */
+  public synchronized void remove(ChunkKey key) {
+    Integer slot = index.remove(key);
+    if (slot != null) {
+      keys[slot] = null;
+      referenced[slot] = false;
+    }
+  }
+
+  /**
+   * Move the clock hand to the first free or not recently used slot
+   */
+  private int findSlot() {
+    while (true) {
+      int slot = hand;
+      hand = (hand + 1) % slots;
+
+      if (keys[slot] == null || !referenced[slot]) {
+        return slot;
+      }
+      referenced[slot] = false;
+    }
+  }
+
+  private ByteBuffer slotBuffer(int slot, int length) {
+    ByteBuffer buffer = memory.duplicate();
+    buffer.limit(slot * slotSize + length);
+    buffer.position(slot * slotSize);
+    return buffer;
+  }
+
+  public long getCapacity() {
+    return (long) slots * slotSize;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "hits=" + hits + " misses=" + misses + " evictions=" + evictions
+            + " cached=" + index.size() + "/" + slots + " chunks";
+  }
+}
@@ -6,7 +6,9 @@ public class ChunkData {
 
   /**
    * Constructor for ChunkData class. It serves for storing information about a
-   * chunk: its id number, the chunk information, and its size.
+   * chunk: its id number, the chunk information, and its size. The chunk
+   * information is null for the chunks stored by this peer, whose content is
+   * kept on disk.
    *
    * @param fileId id string of file
    * @param nr     id number of the chunk
@@ -0,0 +1,82 @@
+/**
+ * Key of a chunk: the handle of its file and its number. Keys are canonical
+ * per handle, see FileHandle.key, so equal keys are usually the same object
+ * and comparing them does not touch the file id.
+ */
+public final class ChunkKey {
+  final FileHandle file;
+  final int nr;
+  final private int hash;
+
+  ChunkKey(FileHandle file, int nr) {
+    this.file = file;
+    this.nr = nr;
+    this.hash = 31 * file.hashCode() + nr;
+  }
+
+  /**
+   * Return the key of a chunk, creating the handle of the file if needed
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return the key
+   */
+  public static ChunkKey of(String fileId, int nr) {
+    return FileHandle.of(fileId).key(nr);
+  }
+
+  /**
+   * Return the key of a chunk if it was created, without creating it
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return the key, or null if the chunk is unknown
+   */
+  public static ChunkKey find(String fileId, int nr) {
+    FileHandle handle = FileHandle.find(fileId);
+    return handle == null ? null : handle.find(nr);
+  }
+
+  /**
+   * Return a key equal to the key of a chunk, without creating the handle of
+   * its file or the key. Used for chunks named in messages, which may be of
+   * any file
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return the key
+   */
+  public static ChunkKey probe(String fileId, int nr) {
+    return FileHandle.probe(fileId).probe(nr);
+  }
+
+  public String getFileId() {
+    return file.fileId;
+  }
+
+  public int getNr() {
+    return nr;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ChunkKey)) {
+      return false;
+    }
+    ChunkKey key = (ChunkKey) o;
+    return nr == key.nr && file.equals(key.file);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return file.fileId + "_" + nr;
+  }
+}
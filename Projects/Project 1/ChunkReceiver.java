@@ -0,0 +1,192 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP endpoint the CHUNKs of the restores of this peer are sent to, when the
+ * peer runs an enhanced version. Its address goes in the body of the
+ * GETCHUNKs, and the holders that understand it send the CHUNK over a
+ * connection to it instead of multicasting it, see ChunkSender.
+ * Every connection carries frames of
+ *   length (4) | CHUNK message
+ * which are handled as if they came from the restore channel. Each
+ * connection is read by a thread of a bounded pool, there is one per holder,
+ * and a connection that gets no frame for IDLE_TIMEOUT is closed. A chunk
+ * received here is noticed on the restore channel with a CHUNK without
+ * body, so the other holders do not send it too.
+ */
+public class ChunkReceiver implements Runnable {
+  // Address put in the GETCHUNKs, can be set with -Dsdis.tcp.host=<address>, the local host by default
+  final static String HOST = System.getProperty("sdis.tcp.host");
+  // Port listened on, can be set with -Dsdis.tcp.port=<port>, any free one by default
+  final static int PORT = Integer.getInteger("sdis.tcp.port", 0);
+  // Connections read at once, more are refused, can be set with -Dsdis.tcp.receivers=<n>
+  final static int RECEIVERS = Integer.getInteger("sdis.tcp.receivers", 16);
+  // Longer than the holders keep an idle connection, so they usually close it first
+  final static long IDLE_TIMEOUT = 2 * ChunkSender.IDLE_TIMEOUT;
+
+  final private PeerService peer;
+  final private ThreadPoolExecutor executor;
+  // Open connections and when they last got a frame
+  final private ConcurrentHashMap<SocketChannel, Long> lastRead;
+  private ServerSocketChannel server;
+  private String endpoint;
+
+  public ChunkReceiver(PeerService peer) {
+    this.peer = peer;
+    this.lastRead = new ConcurrentHashMap<>();
+
+    AtomicInteger threads = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(0, RECEIVERS, IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+            new SynchronousQueue<>(), r -> {
+              Thread thread = new Thread(r, "chunk-receiver-" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Listen for connections and start accepting them in the background
+   *
+   * @throws IOException if the port could not be bound
+   */
+  public void start() throws IOException {
+    server = ServerSocketChannel.open();
+    try {
+      server.bind(new InetSocketAddress(PORT));
+      String host = HOST != null ? HOST : InetAddress.getLocalHost().getHostAddress();
+      endpoint = host + ":" + server.socket().getLocalPort();
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+
+    Thread thread = new Thread(this, "chunk-receiver");
+    thread.setDaemon(true);
+    thread.start();
+    PeerService.timer.schedule(this::closeIdle, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    System.out.println("Receiving chunks at " + endpoint);
+  }
+
+  /**
+   * Address the holders connect to
+   *
+   * @return host:port, or null if the receiver is not started
+   */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  @Override
+  public void run() {
+    while (server.isOpen()) {
+      try {
+        SocketChannel channel = server.accept();
+        lastRead.put(channel, System.currentTimeMillis());
+        try {
+          executor.execute(() -> this.serve(channel));
+        } catch (RejectedExecutionException e) {
+          // The holder multicasts the chunk instead
+          System.out.println("Too many chunk connections, refusing " + channel.getRemoteAddress());
+          lastRead.remove(channel);
+          channel.close();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Read the frames of a connection until the holder closes it
+   */
+  private void serve(SocketChannel channel) {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    BufferPool pool = peer.receiveBuffers;
+
+    try (SocketChannel c = channel) {
+      while (true) {
+        length.clear();
+        if (!readFully(c, length, true)) {
+          return;
+        }
+
+        int msgLen = length.getInt(0);
+        if (msgLen <= 0 || msgLen > pool.getBufferSize()) {
+          System.out.println("Invalid chunk frame from " + c.getRemoteAddress() + ", closing the connection");
+          return;
+        }
+
+        ByteBuffer msg = pool.lease();
+        msg.limit(msgLen);
+        try {
+          readFully(c, msg, false);
+        } catch (IOException e) {
+          pool.release(msg);
+          throw e;
+        }
+        msg.flip();
+
+        lastRead.put(c, System.currentTimeMillis());
+        // Releases the buffer
+        new RestoreChannelWorker(peer, msg, msgLen, pool, true).run();
+      }
+    } catch (IOException e) {
+      // The holder went away or the connection was idle, it reconnects for its next CHUNK
+      System.out.println("Chunk connection closed: " + e);
+    } finally {
+      lastRead.remove(channel);
+    }
+  }
+
+  /**
+   * Close the connections that got no frame for IDLE_TIMEOUT, which ends
+   * the blocked reads of their threads
+   */
+  private void closeIdle() {
+    long now = System.currentTimeMillis();
+    lastRead.forEach((channel, last) -> {
+      if (now - last >= IDLE_TIMEOUT) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+
+    if (server.isOpen()) {
+      PeerService.timer.schedule(this::closeIdle, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Fill a buffer from a connection
+   *
+   * @param atFrame whether the connection may end here
+   * @return false if it ended before the first byte
+   */
+  private static boolean readFully(SocketChannel channel, ByteBuffer dst, boolean atFrame) throws IOException {
+    boolean first = true;
+    while (dst.hasRemaining()) {
+      if (channel.read(dst) < 0) {
+        if (first && atFrame) {
+          return false;
+        }
+        throw new EOFException("Connection ended inside a frame");
+      }
+      first = false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends CHUNKs over TCP to the peers that asked for them with an endpoint
+ * in the GETCHUNK, see ChunkReceiver. There is one connection per endpoint,
+ * kept open for the next chunks of the restore and closed once idle for
+ * IDLE_TIMEOUT. The CHUNK header is written from memory and the content
+ * straight from the pack file with transferTo, so it is not copied through
+ * the heap. Sends run on threads of their own, so a slow endpoint does not
+ * hold the workers of the channels.
+ */
+public class ChunkSender {
+  final static int CONNECT_TIMEOUT = Integer.getInteger("sdis.tcp.connect.timeout", 1000);
+  final static long IDLE_TIMEOUT = Long.getLong("sdis.tcp.idle", 30000);
+  // After a failed connect the endpoint is not tried again for this long, its chunks are multicast
+  final static long CONNECT_BACKOFF = Long.getLong("sdis.tcp.connect.backoff", 5000);
+  // Threads sending chunks, can be set with -Dsdis.tcp.senders=<n>
+  final static int SENDERS = Integer.getInteger("sdis.tcp.senders", 4);
+  // Sends waiting for a thread, more are dropped and the initiator asks again
+  final static int QUEUE_SIZE = Integer.getInteger("sdis.tcp.queue", 1024);
+
+  /**
+   * Pooled connection to an endpoint. Frames are written holding its lock,
+   * so those of different chunks do not interleave. The idle sweep runs on
+   * the timer threads, so it only tries the lock and skips a connection
+   * that is sending
+   */
+  private class Connection {
+    final InetSocketAddress address;
+    final ReentrantLock lock = new ReentrantLock();
+    private SocketChannel channel;
+    private long lastUsed;
+    private long failedAt;
+    // Set once it is closed for being idle and dropped from the pool
+    private boolean retired;
+
+    Connection(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    /**
+     * Must be called holding the lock
+     */
+    boolean send(Message message, String fileId, int nr) {
+      int length = storage.chunkLength(fileId, nr);
+      if (length < 0) {
+        return false;
+      }
+
+      // A pooled connection may have been closed by the other side meanwhile,
+      // which is only seen when it is written, so a fresh one is tried once more
+      for (int attempt = 0; attempt < 2; attempt++) {
+        boolean reused = channel != null;
+        try {
+          if (channel == null) {
+            if (System.currentTimeMillis() - failedAt < CONNECT_BACKOFF) {
+              return false;
+            }
+            this.connect();
+          }
+          lastUsed = System.currentTimeMillis();
+          // False if the chunk was removed meanwhile, before any of the frame was
+          // written, so the connection is still good for the next one
+          return this.write(message, fileId, nr, length);
+        } catch (IOException e) {
+          this.close();
+          if (!reused) {
+            System.out.println("Could not send CHUNK to " + address + ": " + e.getMessage());
+            return false;
+          }
+        }
+      }
+      return false;
+    }
+
+    private void connect() throws IOException {
+      SocketChannel channel = SocketChannel.open();
+      try {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.socket().connect(address, CONNECT_TIMEOUT);
+      } catch (IOException e) {
+        channel.close();
+        failedAt = System.currentTimeMillis();
+        throw e;
+      }
+      this.channel = channel;
+    }
+
+    private boolean write(Message message, String fileId, int nr, int length) throws IOException {
+      byte[] header = message.getHeaderBytes();
+      ByteBuffer frame = ByteBuffer.allocate(4 + header.length);
+      frame.putInt(header.length + length).put(header).flip();
+
+      // The header is written along with the content, once the chunk is found,
+      // a frame cut short throws and the connection is discarded
+      return storage.transferChunk(fileId, nr, frame, length, channel);
+    }
+
+    /**
+     * Close the connection if it was not used for IDLE_TIMEOUT
+     *
+     * @return true if it was closed
+     */
+    boolean closeIdle() {
+      if (!lock.tryLock()) {
+        // In use, so not idle
+        return false;
+      }
+      try {
+        if (System.currentTimeMillis() - lastUsed < IDLE_TIMEOUT) {
+          return false;
+        }
+        this.close();
+        retired = true;
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void close() {
+      if (channel == null) {
+        return;
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      channel = null;
+    }
+  }
+
+  final private LocalStorage storage;
+  final private ConcurrentHashMap<InetSocketAddress, Connection> connections;
+  final private ThreadPoolExecutor executor;
+
+  public ChunkSender(LocalStorage storage) {
+    this.storage = storage;
+    this.connections = new ConcurrentHashMap<>();
+
+    AtomicInteger threads = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(SENDERS, SENDERS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+              Thread thread = new Thread(r, "chunk-sender-" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    PeerService.timer.schedule(this::closeIdle, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send a stored chunk to an endpoint on a sender thread
+   *
+   * @param endpoint address of the peer restoring the file
+   * @param message  CHUNK message, without body
+   * @param fileId   file id
+   * @param nr       chunk number
+   * @param fallback run on the sender thread if the chunk was not sent
+   */
+  public void submit(InetSocketAddress endpoint, Message message, String fileId, int nr, Runnable fallback) {
+    executor.execute(() -> {
+      if (!this.send(endpoint, message, fileId, nr)) {
+        fallback.run();
+      }
+    });
+  }
+
+  /**
+   * Send a stored chunk to an endpoint
+   *
+   * @param endpoint address of the peer restoring the file
+   * @param message  CHUNK message, without body
+   * @param fileId   file id
+   * @param nr       chunk number
+   * @return false if it was not sent, in which case it can be multicast
+   */
+  public boolean send(InetSocketAddress endpoint, Message message, String fileId, int nr) {
+    while (true) {
+      Connection connection = connections.computeIfAbsent(endpoint, Connection::new);
+      connection.lock.lock();
+      try {
+        // Otherwise it was dropped from the pool meanwhile, the next lookup gets a new one
+        if (!connection.retired) {
+          return connection.send(message, fileId, nr);
+        }
+      } finally {
+        connection.lock.unlock();
+      }
+    }
+  }
+
+  private void closeIdle() {
+    connections.values().removeIf(Connection::closeIdle);
+    PeerService.timer.schedule(this::closeIdle, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Parse the endpoint in the body of a GETCHUNK
+   *
+   * @param body host:port
+   * @return address, or null if the body is not one
+   */
+  public static InetSocketAddress parseEndpoint(ByteBuffer body) {
+    byte[] bytes = new byte[body.remaining()];
+    body.duplicate().get(bytes);
+    String endpoint = new String(bytes, StandardCharsets.US_ASCII).trim();
+
+    int split = endpoint.lastIndexOf(':');
+    if (split <= 0) {
+      return null;
+    }
+    try {
+      int port = Integer.parseInt(endpoint.substring(split + 1));
+      if (port <= 0 || port > 65535) {
+        return null;
+      }
+      return new InetSocketAddress(endpoint.substring(0, split), port);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lazy source of the chunks of a file. The file is memory mapped, in segments
+ * of at most SEGMENT_CHUNKS chunks because a single mapping is limited to 2 GB,
+ * and each chunk is returned as a slice of its mapping. The bytes are only
+ * read from disk when the slice is sent, they never live in the heap, and
+ * sending the same chunk again reads it from the mapping again.
+ * The mappings stay valid after the file channel is closed, and are released
+ * when the source is no longer referenced.
+ */
+public class ChunkSource {
+  static final int SEGMENT_CHUNKS = 16384;
+
+  final private MappedByteBuffer[] segments;
+  final private long size;
+  final private int chunkCount;
+
+  /**
+   * Map the file
+   *
+   * @param file file to split in chunks
+   * @throws IOException if the file can not be mapped
+   */
+  public ChunkSource(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      this.size = channel.size();
+      this.chunkCount = FileData.chunkCount(this.size);
+
+      long segmentSize = (long) SEGMENT_CHUNKS * FileData.MAX_CHUNK_SIZE;
+      int nSegments = (int) ((this.size + segmentSize - 1) / segmentSize);
+      this.segments = new MappedByteBuffer[nSegments];
+
+      for (int i = 0; i < nSegments; i++) {
+        long position = i * segmentSize;
+        this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, this.size - position));
+      }
+    }
+  }
+
+  /**
+   * Return the number of chunks. If the file size is multiple of
+   * MAX_CHUNK_SIZE, the last chunk has size 0.
+   *
+   * @return number of chunks
+   */
+  public int getChunkCount() {
+    return chunkCount;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Return the size of chunk nr
+   *
+   * @param nr chunk number
+   * @return size of the chunk
+   */
+  public int getChunkSize(int nr) {
+    return FileData.chunkSize(this.size, nr);
+  }
+
+  /**
+   * Return chunk nr as a read only slice of the mapped file, no bytes are copied
+   *
+   * @param nr chunk number
+   * @return slice with the chunk
+   */
+  public ByteBuffer getChunk(int nr) {
+    if (nr < 0 || nr >= chunkCount) {
+      throw new IndexOutOfBoundsException("Chunk " + nr + " of " + chunkCount);
+    }
+
+    int length = getChunkSize(nr);
+    if (length == 0) {
+      return ByteBuffer.allocate(0);
+    }
+
+    ByteBuffer segment = this.segments[nr / SEGMENT_CHUNKS].duplicate();
+    int offset = (nr % SEGMENT_CHUNKS) * FileData.MAX_CHUNK_SIZE;
+    segment.limit(offset + length);
+    segment.position(offset);
+    return segment.slice().asReadOnlyBuffer();
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * AIMD window that limits the number of requests in flight. The window grows
+ * by one for every acknowledged request while under the slow start threshold,
+ * and by one per window of acknowledged requests above it. A loss halves it,
+ * at most once per loss interval so that a burst of losses from the same
+ * window only counts once.
+ */
+public class CongestionWindow {
+  final private int minWindow;
+  final private int maxWindow;
+  final private long lossIntervalMillis;
+
+  private double window;
+  private double threshold;
+  private int inFlight;
+  private long lastDecrease;
+
+  /**
+   * @param initialWindow      starting window
+   * @param minWindow          the window never shrinks below this
+   * @param maxWindow          the window never grows above this
+   * @param lossIntervalMillis losses closer than this to the last decrease are ignored
+   */
+  public CongestionWindow(int initialWindow, int minWindow, int maxWindow, long lossIntervalMillis) {
+    this.minWindow = minWindow;
+    this.maxWindow = maxWindow;
+    this.lossIntervalMillis = lossIntervalMillis;
+    this.window = initialWindow;
+    this.threshold = maxWindow;
+    this.inFlight = 0;
+    this.lastDecrease = 0;
+  }
+
+  /**
+   * Wait for room in the window and take it
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void acquire() throws InterruptedException {
+    while (inFlight >= (int) window) {
+      wait();
+    }
+    inFlight++;
+  }
+
+  /**
+   * A request was acknowledged: free its place and open the window
+   */
+  public synchronized void acked() {
+    if (window < threshold) {
+      window += 1;
+    } else {
+      window += 1 / window;
+    }
+    window = Math.min(window, maxWindow);
+
+    this.release();
+  }
+
+  /**
+   * A request got no answer in time: close the window
+   */
+  public synchronized void lost() {
+    long now = System.currentTimeMillis();
+    if (now - lastDecrease < lossIntervalMillis) {
+      return;
+    }
+
+    lastDecrease = now;
+    threshold = Math.max(minWindow, window / 2);
+    window = threshold;
+  }
+
+  /**
+   * Free the place of a request without changing the window (e.g. it was
+   * given up on)
+   */
+  public synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  public synchronized int getWindow() {
+    return (int) window;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+}
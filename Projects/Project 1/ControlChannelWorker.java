@@ -1,14 +1,17 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
 public class ControlChannelWorker extends ChannelWorker {
-    public ControlChannelWorker(PeerService peer, byte[] msg, int msgLen) {
-        super(peer, msg, msgLen);
+    public ControlChannelWorker(PeerService peer, ByteBuffer msg, int msgLen, BufferPool pool) {
+        super(peer, msg, msgLen, pool);
     }
 
     @Override
-    public void run() {
+    protected void process() {
         try {
-            Message msg = Message.parseMessage(super.msg,msgLen);
+            MessageView msg = MessageView.local().wrap(this.msg, msgLen);
 
-            if (Integer.parseInt(msg.getSenderId()) == peer.peerId) {
+            if (msg.getSenderId() == peer.peerId) {
                 return;
             }
 
@@ -35,26 +38,29 @@ public class ControlChannelWorker extends ChannelWorker {
         }
     }
 
-    private void parseRemoved(Message msg) {
+    private void parseRemoved(MessageView msg) {
         System.out.println("System received REMOVED message.");
-        peer.removed(msg.getFileId(), Integer.parseInt(msg.getChunckNo()));
+        peer.removed(msg.getFileId(), msg.getChunkNo(), msg.getSenderId());
     }
 
-    private void parseStored(Message msg) {
+    private void parseStored(MessageView msg) {
         System.out.println("System received STORED message.");
-        synchronized (peer) {
-            if (!peer.testPeerStoredChunk(msg.getFileId(),Integer.parseInt(msg.getChunckNo()),msg.getSenderId())) {
-                peer.recordPeerStoredChunk(msg.getFileId(),Integer.parseInt(msg.getChunckNo()),msg.getSenderId());
-            }
-        }
+        peer.recordPeerStoredChunk(msg.getFileId(), msg.getChunkNo(), msg.getSenderId());
     }
 
-    private void parseGetchunk(Message msg) {
+    private void parseGetchunk(MessageView msg) {
         System.out.println("System received GETCHUNK message.");
-        peer.getChunk(msg.getFileId(), Integer.parseInt(msg.getChunckNo()));
+
+        // An enhanced initiator gives where to send the chunk over TCP
+        InetSocketAddress endpoint = null;
+        if (peer.isEnhanced() && !PeerService.BASE_VERSION.equals(msg.getVersion())
+                && msg.getBodyLength() > 0) {
+            endpoint = ChunkSender.parseEndpoint(msg.getBody());
+        }
+        peer.getChunk(msg.getFileId(), msg.getChunkNo(), endpoint);
     }
 
-    private void parseDelete(Message msg) {
+    private void parseDelete(MessageView msg) {
         System.out.println("System received DELETE message.");
         peer.deleteChunks(msg.getFileId());
     }
@@ -0,0 +1,132 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker stage shared by all the multicast channels. Every priority has its
+ * own bounded queue and the worker threads always take from the highest
+ * priority queue that has work, so control messages go ahead of the bulk
+ * chunk traffic. When a queue is full the message is dropped (load shedding)
+ * instead of growing the queue or the number of threads.
+ */
+public class DispatchStage {
+  /**
+   * Priorities, from highest to lowest
+   */
+  public enum Priority {CONTROL, RESTORE, BACKUP}
+
+  final private ArrayBlockingQueue<ChannelWorker>[] queues;
+  final private AtomicLong[] dispatched;
+  final private AtomicLong[] dropped;
+  // One permit per queued worker, in any of the queues
+  final private Semaphore pending;
+  final private Thread[] threads;
+
+  /**
+   * @param threads    number of worker threads
+   * @param capacities queue capacity of each priority, in Priority order
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public DispatchStage(int threads, int... capacities) {
+    Priority[] priorities = Priority.values();
+    if (capacities.length != priorities.length) {
+      throw new IllegalArgumentException("One capacity per priority is needed");
+    }
+
+    this.queues = new ArrayBlockingQueue[priorities.length];
+    this.dispatched = new AtomicLong[priorities.length];
+    this.dropped = new AtomicLong[priorities.length];
+    for (int i = 0; i < priorities.length; i++) {
+      this.queues[i] = new ArrayBlockingQueue<>(capacities[i]);
+      this.dispatched[i] = new AtomicLong();
+      this.dropped[i] = new AtomicLong();
+    }
+
+    this.pending = new Semaphore(0);
+    this.threads = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      this.threads[i] = new Thread(this::work, "worker-" + i);
+      this.threads[i].setDaemon(true);
+    }
+  }
+
+  /**
+   * Starts the worker threads
+   */
+  public void start() {
+    for (Thread thread : this.threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Queues the worker with the given priority. If that queue is full the
+   * worker is dropped and its buffer released
+   *
+   * @param worker   worker to run
+   * @param priority priority of the worker
+   * @return false if the worker was dropped
+   */
+  public boolean submit(ChannelWorker worker, Priority priority) {
+    int p = priority.ordinal();
+
+    if (!this.queues[p].offer(worker)) {
+      this.dropped[p].incrementAndGet();
+      worker.release();
+      return false;
+    }
+
+    this.dispatched[p].incrementAndGet();
+    this.pending.release();
+    return true;
+  }
+
+  private void work() {
+    while (true) {
+      try {
+        this.pending.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      // A permit means there is at least one queued worker
+      ChannelWorker worker = null;
+      for (int p = 0; worker == null; p = (p + 1) % this.queues.length) {
+        worker = this.queues[p].poll();
+      }
+
+      try {
+        worker.run();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public int getQueueDepth(Priority priority) {
+    return this.queues[priority.ordinal()].size();
+  }
+
+  public long getDispatched(Priority priority) {
+    return this.dispatched[priority.ordinal()].get();
+  }
+
+  public long getDropped(Priority priority) {
+    return this.dropped[priority.ordinal()].get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Priority priority : Priority.values()) {
+      if (builder.length() != 0) {
+        builder.append(", ");
+      }
+      builder.append(priority.name().toLowerCase())
+              .append(" queued=").append(getQueueDepth(priority))
+              .append(" dispatched=").append(getDispatched(priority))
+              .append(" dropped=").append(getDropped(priority));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,103 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent set whose elements expire a fixed time after they were added.
+ * Membership is a hash lookup of the expiry time. Expired elements are
+ * dropped when they are looked up, and every SWEEP_INTERVAL additions one
+ * caller sweeps the whole set, so elements that are never looked up again
+ * do not accumulate.
+ *
+ * @param <K> element type
+ */
+public class ExpiringSet<K> {
+  final static int SWEEP_INTERVAL = 256;
+
+  final private ConcurrentHashMap<K, Long> deadlines;
+  final private long ttlNanos;
+  final private AtomicInteger additions;
+  final private AtomicBoolean sweeping;
+
+  /**
+   * @param ttl  time an element stays in the set
+   * @param unit unit of ttl
+   */
+  public ExpiringSet(long ttl, TimeUnit unit) {
+    this.deadlines = new ConcurrentHashMap<>();
+    this.ttlNanos = unit.toNanos(ttl);
+    this.additions = new AtomicInteger();
+    this.sweeping = new AtomicBoolean();
+  }
+
+  /**
+   * Add an element, or renew it if it is already in the set
+   *
+   * @param key element
+   */
+  public void add(K key) {
+    deadlines.put(key, System.nanoTime() + ttlNanos);
+
+    if (additions.incrementAndGet() % SWEEP_INTERVAL == 0) {
+      this.sweep();
+    }
+  }
+
+  /**
+   * Test if an element is in the set and has not expired
+   *
+   * @param key element
+   * @return true if it is
+   */
+  public boolean contains(K key) {
+    Long deadline = deadlines.get(key);
+    if (deadline == null) {
+      return false;
+    }
+    if (deadline - System.nanoTime() < 0) {
+      deadlines.remove(key, deadline);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remove an element
+   *
+   * @param key element
+   */
+  public void remove(K key) {
+    deadlines.remove(key);
+  }
+
+  /**
+   * Number of elements, some of which may have expired
+   *
+   * @return size of the set
+   */
+  public int size() {
+    return deadlines.size();
+  }
+
+  /**
+   * Drop the expired elements. Skipped if another thread is sweeping
+   */
+  private void sweep() {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      long now = System.nanoTime();
+      for (Map.Entry<K, Long> e : deadlines.entrySet()) {
+        if (e.getValue() - now < 0) {
+          deadlines.remove(e.getKey(), e.getValue());
+        }
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+}
@@ -1,10 +1,7 @@
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.util.ArrayList;
-import java.util.Arrays;
 
 public class FileData {
   static int MAX_CHUNK_SIZE = 64000;
@@ -13,14 +10,18 @@ public class FileData {
   final String id;
   final File file;
   int replicationDegree;
-  ArrayList<ChunkData> chunks;
+  final long size;
+  final int chunkCount;
+  final long backupTime;
 
   /**
    * Constructor for FileData class. It stores the information about a file.
    * id is the sha256 hash of the properties of the file
    * file stores the path of the file
    * replicationDegree indicates the minimum replication of chunks needed
-   * chunks is a list of all chunks that form the file
+   * size and chunkCount are the size of the file and its number of chunks
+   * when it was backed up, the chunks themselves are read with openChunks
+   * backupTime is when the backup of this version of the file was requested
    *
    * @param path path of the file
    * @param repDegree replication degree of chunks
@@ -29,7 +30,28 @@ public class FileData {
     file = new File(path);
     id = hashFile();
     replicationDegree = repDegree;
-    chunks = splitFile();
+    size = file.length();
+    chunkCount = chunkCount(size);
+    backupTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Constructor for the FileData of a file that was already backed up, from
+   * the properties it had then
+   *
+   * @param id         file id
+   * @param path       path of the file
+   * @param repDegree  replication degree of chunks
+   * @param size       size of the file
+   * @param backupTime when the backup was requested
+   */
+  FileData(String id, String path, int repDegree, long size, long backupTime) {
+    this.file = new File(path);
+    this.id = id;
+    this.replicationDegree = repDegree;
+    this.size = size;
+    this.chunkCount = chunkCount(size);
+    this.backupTime = backupTime;
   }
 
   /**
@@ -62,38 +84,37 @@ public class FileData {
   }
 
   /**
-   * Split file into chunks of MAX_CHUNK_SIZE, less for final chunk.
-   * If file size is multiple of MAX_CHUNK_SIZE, last chunk has size 0.
+   * Open the chunks of the file for reading. The chunks are read on demand
+   * from a mapping of the file instead of being kept in memory.
    *
-   * @return list of chunks
+   * @return source of the chunks of the file
+   * @throws IOException if the file can not be read
    */
-  private ArrayList<ChunkData> splitFile() {
-    ArrayList<ChunkData> chunks = new ArrayList<>();
-    int nr = 0;
-    byte[] buf = new byte[MAX_CHUNK_SIZE];
-
-    try {
-      FileInputStream fstream = new FileInputStream(file);
-      BufferedInputStream bstream = new BufferedInputStream(fstream);
-      int bytes = 0;
-
-      while ((bytes = bstream.read(buf)) > 0) {
-        byte[] chunkBuf = Arrays.copyOf(buf, bytes);
-        ChunkData c = new ChunkData(id, nr++, chunkBuf, bytes);
-        chunks.add(c);
-        buf = new byte[MAX_CHUNK_SIZE];
-      }
-
-      if (file.length() % MAX_CHUNK_SIZE == 0) {
-        ChunkData c = new ChunkData(id, nr++, null, 0);
-        chunks.add(c);
-      }
+  public ChunkSource openChunks() throws IOException {
+    return new ChunkSource(file);
+  }
 
-      bstream.close();
-    } catch (Exception e) {
-      System.exit(1);
-    }
+  /**
+   * Number of chunks of MAX_CHUNK_SIZE, less for final chunk, of a file with
+   * the given size. If file size is multiple of MAX_CHUNK_SIZE, last chunk has
+   * size 0.
+   *
+   * @param size file size
+   * @return number of chunks
+   */
+  static int chunkCount(long size) {
+    return (int) (size / MAX_CHUNK_SIZE) + 1;
+  }
 
-    return chunks;
+  /**
+   * Size of chunk nr of a file with the given size
+   *
+   * @param size file size
+   * @param nr   chunk number
+   * @return size of the chunk
+   */
+  static int chunkSize(long size, int nr) {
+    long start = (long) nr * MAX_CHUNK_SIZE;
+    return (int) Math.max(0, Math.min(MAX_CHUNK_SIZE, size - start));
   }
 }
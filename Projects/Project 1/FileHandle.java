@@ -0,0 +1,160 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned handle of a file id. Every file id has one handle, which keeps
+ * the canonical ChunkKey of each of its chunks in an array indexed by chunk
+ * number, so looking up the key of a chunk allocates nothing once the chunk
+ * has been seen. Only the chunks of files this peer stores or backs up are
+ * interned, lookups of other chunks neither create a handle nor grow the
+ * array of one.
+ */
+public class FileHandle {
+  final private static ConcurrentHashMap<String, FileHandle> handles = new ConcurrentHashMap<>();
+
+  final String fileId;
+  final private int hash;
+  // Grown by copy, doubling it, and filled in place under the handle lock.
+  // A reader that sees no key in a slot takes the lock, keys are immutable
+  private volatile ChunkKey[] keys;
+
+  private FileHandle(String fileId) {
+    this.fileId = fileId;
+    this.hash = fileId.hashCode();
+    this.keys = new ChunkKey[0];
+  }
+
+  /**
+   * Return the handle of a file id, creating it if needed
+   *
+   * @param fileId file id
+   * @return the handle
+   */
+  public static FileHandle of(String fileId) {
+    FileHandle handle = handles.get(fileId);
+    if (handle == null) {
+      handle = handles.computeIfAbsent(fileId, FileHandle::new);
+    }
+    return handle;
+  }
+
+  /**
+   * Return the handle of a file id if there is one. Used by lookups, so that
+   * messages about unknown files do not create handles
+   *
+   * @param fileId file id
+   * @return the handle, or null
+   */
+  public static FileHandle find(String fileId) {
+    return handles.get(fileId);
+  }
+
+  /**
+   * Return the handle of a file id if there is one, or else a handle that is
+   * equal to the one it would have but is not interned
+   *
+   * @param fileId file id
+   * @return the handle
+   */
+  public static FileHandle probe(String fileId) {
+    FileHandle handle = handles.get(fileId);
+    return handle != null ? handle : new FileHandle(fileId);
+  }
+
+  /**
+   * Drop the handle of a file id. Keys that are still referenced keep
+   * working, a new handle of the same file id is equal to the old one
+   *
+   * @param fileId file id
+   */
+  public static void forget(String fileId) {
+    handles.remove(fileId);
+  }
+
+  /**
+   * Return the canonical key of a chunk of the file
+   *
+   * @param nr chunk number
+   * @return the key
+   */
+  public ChunkKey key(int nr) {
+    if (nr < 0) {
+      return new ChunkKey(this, nr);
+    }
+
+    ChunkKey[] current = keys;
+    if (nr < current.length && current[nr] != null) {
+      return current[nr];
+    }
+
+    synchronized (this) {
+      current = keys;
+      if (nr < current.length && current[nr] != null) {
+        return current[nr];
+      }
+
+      ChunkKey key = new ChunkKey(this, nr);
+      if (nr >= current.length) {
+        ChunkKey[] grown = new ChunkKey[Math.max(nr + 1, current.length * 2)];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[nr] = key;
+        keys = grown;
+      } else {
+        current[nr] = key;
+      }
+      return key;
+    }
+  }
+
+  /**
+   * Return the canonical key of a chunk of the file if it was created
+   *
+   * @param nr chunk number
+   * @return the key, or null
+   */
+  public ChunkKey find(int nr) {
+    ChunkKey[] current = keys;
+    if (nr < 0) {
+      return null;
+    }
+    if (nr < current.length && current[nr] != null) {
+      return current[nr];
+    }
+
+    // Not seen yet by this reader, or not created
+    synchronized (this) {
+      current = keys;
+      return nr < current.length ? current[nr] : null;
+    }
+  }
+
+  /**
+   * Return the canonical key of a chunk of the file if it was created, or
+   * else a key equal to it, without creating it
+   *
+   * @param nr chunk number
+   * @return the key
+   */
+  public ChunkKey probe(int nr) {
+    ChunkKey key = this.find(nr);
+    return key != null ? key : new ChunkKey(this, nr);
+  }
+
+  public String getFileId() {
+    return fileId;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || (o instanceof FileHandle && fileId.equals(((FileHandle) o).fileId));
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return fileId;
+  }
+}
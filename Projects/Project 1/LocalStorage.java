@@ -1,59 +1,138 @@
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalStorage {
+  // Off-heap cache of the payloads read from disk, can be set with -Dsdis.cache.size=<bytes>
+  final static long CACHE_SIZE = Long.getLong("sdis.cache.size", 64L * 1024 * 1024);
+  // How long REMOVED and PUTCHUNK messages are remembered for the REMOVED back-off,
+  // which lasts at most MAX_DELAY
+  final static long RECENT_TTL = Long.getLong("sdis.backoff.ttl", 2 * PeerService.MAX_DELAY);
+  // Desired replication of a chunk found on disk without a catalogue entry
+  final static int UNKNOWN_REPLICATION = 1;
+
   final private ConcurrentHashMap<String, FileData> files;
-  final private ConcurrentHashMap<String, ChunkData> chunks;
-  final private ConcurrentHashMap<String, CopyOnWriteArrayList<ChunkData>> restoringChunks;
-  final private ConcurrentHashMap<String, CopyOnWriteArrayList<String>> storingPeers;
-  final private ConcurrentHashMap<String, Integer> desiredReplication;
-  final private CopyOnWriteArrayList<String> recentPutchunk;
-  final private CopyOnWriteArrayList<String> recentRemoved;
+  final private ConcurrentHashMap<String, CopyOnWriteArrayList<FileData>> versions;
+  final private ConcurrentHashMap<ChunkKey, ChunkData> chunks;
+  final private ConcurrentHashMap<ChunkKey, ReplicaSet> storingPeers;
+  final private ConcurrentHashMap<ChunkKey, Integer> desiredReplication;
+  final private SurplusIndex surplus;
+  // Chunks whose replication changed since the surplus index was refreshed
+  final private Set<ChunkKey> surplusChanged;
+  final private ConcurrentHashMap<FileHandle, Set<ChunkKey>> fileChunks;
+  // Chunks of any file seen in messages, keyed by keys that are not interned, see ChunkKey.probe
+  final private ExpiringSet<ChunkKey> recentPutchunk;
+  final private ExpiringSet<ChunkKey> recentRemoved;
+  final private PackStore packs;
+  final private ChunkCache cache;
+  final private MetadataLog log;
+  final private StorageScan scan;
   final private PeerService peer;
 
-  private long availableSpace;
-  private long maxSpace;
+  final private AtomicLong availableSpace;
+  private volatile long maxSpace;
+  // While the metadata log is replayed the pack store is left alone
+  private boolean recovering;
 
   /**
    * Constructor for LocalStorage class. It serves to catalogue all the files
-   * backed up and chunks stored in the system. files is a a map where the key is
-   * the file id and the value is the file data. chunks is a map where the key is
-   * the concatenation of file id with chunk number and the value is the chunk.
-   * is an int array. the int array is used to know the replication of each chunk:
-   * if the chunk with id number X is stored 3 times, then the value in the array
-   * with index X is 3. storingPeers is an hash map that stores which peers have
-   * stored a chunk. The key is the concatenation of the file id and the chunk
-   * number and the value is a list with the peer ids that have sent a stored
-   * message for that chunk. availableSpace KBytes available for storage.
+   * backed up and chunks stored in the system.
+   * files maps the id of each backed up file to its file data.
+   * versions has the backed up versions of each path, oldest first.
+   * chunks maps the key of each chunk stored by this peer (see ChunkKey) to the chunk.
+   * storingPeers has the ReplicaSet of each known chunk, the ids of the peers that sent a STORED for it.
+   * desiredReplication has the desired replication degree of each known chunk.
+   * surplus orders the stored chunks by how much they are over-replicated (see SurplusIndex).
+   * surplusChanged has the chunks whose surplus must be recomputed before surplus is queried.
+   * fileChunks has the keys of the chunks of each file, so they are found without going through all of them.
+   * availableSpace is an AtomicLong with the bytes still available for storage, out of maxSpace.
+   * Only the chunk metadata is kept in memory, the payloads live in the
+   * pack store and the recently read ones in the cache. Every change of the
+   * catalogue is logged, and the catalogue is recovered from the log when the
+   * storage is created (see MetadataLog).
    */
   public LocalStorage(PeerService peer) {
     files = new ConcurrentHashMap<>();
+    versions = new ConcurrentHashMap<>();
     chunks = new ConcurrentHashMap<>();
-    restoringChunks = new ConcurrentHashMap<>();
     storingPeers = new ConcurrentHashMap<>();
     desiredReplication = new ConcurrentHashMap<>();
-    recentPutchunk = new CopyOnWriteArrayList<>();
-    recentRemoved = new CopyOnWriteArrayList<>();
+    surplus = new SurplusIndex();
+    surplusChanged = ConcurrentHashMap.newKeySet();
+    fileChunks = new ConcurrentHashMap<>();
+    recentPutchunk = new ExpiringSet<>(RECENT_TTL, TimeUnit.MILLISECONDS);
+    recentRemoved = new ExpiringSet<>(RECENT_TTL, TimeUnit.MILLISECONDS);
+    cache = new ChunkCache(CACHE_SIZE, FileData.MAX_CHUNK_SIZE);
     this.peer = peer;
-    availableSpace = 1000000000;
+    availableSpace = new AtomicLong(1000000000);
     maxSpace = 1000000000;
 
-    // Create store folder if it does not exist
-    new File("peer" + peer.peerId + "/storage").mkdirs();
+    // Open the chunk store, its folder is created if it does not exist
+    try {
+      packs = new PackStore(Paths.get("peer" + peer.peerId + "/storage/packs"));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the chunk store", e);
+    }
+
+    // Chunks left as one file each in the storage folder
+    scan = new StorageScan(Paths.get("peer" + peer.peerId + "/storage"), this);
+
+    log = new MetadataLog(Paths.get("peer" + peer.peerId + "/metadata"), this);
+    recovering = true;
+    try {
+      log.recover();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not recover the catalogue", e);
+    } finally {
+      recovering = false;
+    }
+    this.reconcile();
+    scan.start();
+  }
+
+  /**
+   * Make the catalogue agree with the chunk contents on disk. A recovered
+   * chunk whose content is gone is dropped, which happens if the peer
+   * stopped between removing it and logging it, and a chunk in the pack
+   * store that is not in the catalogue is recorded, which happens if the
+   * metadata log was lost
+   */
+  private void reconcile() {
+    int dropped = 0;
+    int found = 0;
+
+    for (ChunkData cd : chunks.values()) {
+      ChunkKey key = ChunkKey.of(cd.fileId, cd.nr);
+      if (!packs.contains(key) && !scan.exists(cd.fileId, cd.nr)) {
+        this.removeChunk(key);
+        dropped++;
+      }
+    }
+
+    for (ChunkKey key : packs.keys()) {
+      int size = packs.length(key);
+      if (!chunks.containsKey(key) && size >= 0) {
+        this.recordChunk(key.getFileId(), key.getNr(), size, UNKNOWN_REPLICATION);
+        log.chunkStore(key, size, UNKNOWN_REPLICATION);
+        found++;
+      }
+    }
+
+    if (dropped > 0 || found > 0) {
+      System.out.println("Catalogue reconciled with the pack store: " + dropped + " chunks dropped, "
+              + found + " chunks found");
+    }
   }
 
   /**
@@ -65,217 +144,396 @@ public class LocalStorage {
     if (files.get(fd.id) != null)
       return;
 
-    // record the file
+    // record the file, as the latest version of its path
     files.put(fd.id, fd);
+    versions.compute(fd.file.getPath(), (path, list) -> {
+      list = list == null ? new CopyOnWriteArrayList<>() : list;
+      list.add(fd);
+      return list;
+    });
 
     // initialize storing peers for each chunk
-    CopyOnWriteArrayList<String> storeList;
-    for (ChunkData chunk : fd.chunks) {
-      storeList = new CopyOnWriteArrayList<>();
-      storingPeers.put(fd.id + chunk.nr, storeList);
+    FileHandle file = FileHandle.of(fd.id);
+    for (int nr = 0; nr < fd.chunkCount; nr++) {
+      storingPeers.put(file.key(nr), new ReplicaSet());
+      this.indexChunk(file.key(nr));
     }
 
     //initialize replication degree
-    for (ChunkData chunk : fd.chunks) {
-      this.desiredReplication.put(fd.id + chunk.nr, desiredReplication);
+    for (int nr = 0; nr < fd.chunkCount; nr++) {
+      this.desiredReplication.put(file.key(nr), desiredReplication);
     }
 
+    log.fileBackup(fd);
   }
 
   /**
-   * Store chunk cd in chunk list.
+   * Store chunk in disk and record it in chunk list.
    *
-   * @param cd chunk data
+   * @param fileId             file id
+   * @param nr                 chunk number
+   * @param body               chunk content, which is not kept after the call
+   * @param desiredReplication desired replication of the chunk
+   * @return true if the chunk was stored
    */
-  public void store(ChunkData cd, int desiredReplication) {
-    if (availableSpace - cd.size <= 0) {
+  public boolean store(String fileId, int nr, ByteBuffer body, int desiredReplication) {
+    int size = body.remaining();
+
+    if (availableSpace.get() - size <= 0) {
       // In case there is no space, tell peer to remove unneeded chunks
-      peer.cleanup();
+      peer.cleanup(size);
     }
 
     //Store if after the cleanup there is available space
-    if (availableSpace - cd.size > 0) {
-      this.storeChunkInDisk(cd,desiredReplication);
+    if (availableSpace.get() - size > 0) {
+      return this.storeChunkInDisk(fileId, nr, body, desiredReplication);
     }
+    return false;
   }
 
   /**
-   * Creates the chunk file in the disk storage folder
-   * @param cd
+   * Appends the chunk to the pack store. The write is durable before the
+   * chunk is recorded, so a recorded chunk can always be read
+   *
+   * @param fileId
+   * @param nr
+   * @param body
    * @param desiredReplication
    */
-  private void storeChunkInDisk(ChunkData cd, int desiredReplication) {
-    Path path = Paths.get("peer" + peer.peerId + "/storage/" + cd.fileId + "_" + cd.nr);
+  private boolean storeChunkInDisk(String fileId, int nr, ByteBuffer body, int desiredReplication) {
+    ChunkKey key = ChunkKey.of(fileId, nr);
+    int size = body.remaining();
 
     try {
-      AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(path, StandardOpenOption.CREATE,
-              StandardOpenOption.WRITE);
-
-      ByteBuffer buffer = ByteBuffer.wrap(cd.chunk);
-
-      fileChannel.write(buffer, 0);
+      packs.put(key, body);
     } catch (IOException e) {
       e.printStackTrace();
+      return false;
     }
 
-    chunks.put(cd.fileId + cd.nr, cd);
-    availableSpace -= cd.size;
+    this.recordChunk(fileId, nr, size, desiredReplication);
+    log.chunkStore(key, size, desiredReplication);
+    return true;
+  }
+
+  /**
+   * Record a chunk whose content is in the pack store in the chunk list, as
+   * stored by this peer. Recording it again only updates it
+   *
+   * @param fileId             file id
+   * @param nr                 chunk number
+   * @param size               size of the chunk
+   * @param desiredReplication desired replication of the chunk
+   */
+  void recordChunk(String fileId, int nr, int size, int desiredReplication) {
+    ChunkKey key = ChunkKey.of(fileId, nr);
+
+    this.indexChunk(key);
+    ChunkData previous = chunks.put(key, new ChunkData(fileId, nr, null, size));
+    availableSpace.addAndGet(previous == null ? -size : previous.size - size);
 
     //Create the replication List if it does not exists
-    if (storingPeers.get(cd.fileId + cd.nr) == null) {
-      storingPeers.put(cd.fileId + cd.nr, new CopyOnWriteArrayList<>());
-    }
+    storingPeers.putIfAbsent(key, new ReplicaSet());
 
     // add self to replication list
-    this.recordStore(cd.fileId, cd.nr, String.valueOf(peer.peerId));
+    storingPeers.get(key).add(peer.peerId);
 
     // add the desired replication of the chunk
-    this.desiredReplication.put(cd.fileId + cd.nr, desiredReplication);
+    this.desiredReplication.put(key, desiredReplication);
+    this.updateSurplus(key);
   }
 
   /**
-   * Returns ordered list of chunks with highest difference between actual
-   * replication and desired replication
+   * Copy the content of a stored chunk into dst, from the cache or else from
+   * disk, in which case it is cached.
    *
-   * @return ordered list of fileId+chunkNo
+   * @param fileId file id
+   * @param nr     chunk number
+   * @param dst    buffer with room for a chunk, filled from its position
+   * @return false if the chunk is not stored or could not be read
    */
-  public ArrayList<String> reclaim() {
-    ArrayList<String> list = new ArrayList<>();
-
-    // Get map with difference between actual replication degree and desired
-    // replication degree
-    Map<String, Integer> repMap = new LinkedHashMap<>();
-    for (Map.Entry<String, CopyOnWriteArrayList<String>> e : storingPeers.entrySet()) {
-      repMap.put(e.getKey(), e.getValue().size() - desiredReplication.get(e.getKey()));
+  public boolean readChunk(String fileId, int nr, ByteBuffer dst) {
+    ChunkKey key = this.lookup(fileId, nr);
+    if (key == null) {
+      return false;
+    }
+    if (cache.get(key, dst)) {
+      return true;
     }
 
-    // Sort map to get highest replication first
-    List<Map.Entry<String, Integer>> repList = new LinkedList<>(repMap.entrySet());
-    Collections.sort(repList, new Comparator<Map.Entry<String, Integer>>() {
-      public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
-        return o2.getValue() - o1.getValue();
+    int start = dst.position();
+    try {
+      if (!packs.read(key, dst)) {
+        // Removed meanwhile
+        return false;
       }
-    });
-
-    // Put ordered keys into final list
-    for (Map.Entry<String, Integer> e : repList) {
-      list.add(e.getKey());
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
     }
 
-    return list;
+    ByteBuffer content = dst.duplicate();
+    content.flip().position(start);
+    cache.put(key, content);
+    return true;
   }
 
   /**
-   * Returns ordered list of chunks with highest difference between actual
-   * replication and desired replication and only if they are above certain value
+   * Map the content of a stored chunk. Used when the content must outlive the
+   * call, so that it does not take space in the heap or in the cache
    *
-   * @param diff minimum difference, all chunks must have above this diff
-   * @return ordered list of fileId+chunkNo
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return read-only content of the chunk, or null if it is not stored
    */
-  public ArrayList<String> reclaim(int diff) {
-    ArrayList<String> list = new ArrayList<>();
+  public MappedByteBuffer mapChunk(String fileId, int nr) {
+    ChunkKey key = this.lookup(fileId, nr);
+    if (key == null) {
+      return null;
+    }
 
-    // Get map with difference between actual replication degree and desired
-    // replication degree
-    Map<String, Integer> repMap = new LinkedHashMap<>();
-    for (Map.Entry<String, CopyOnWriteArrayList<String>> e : storingPeers.entrySet()) {
-      repMap.put(e.getKey(), e.getValue().size() - desiredReplication.get(e.getKey()));
+    try {
+      return packs.map(key);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
     }
+  }
 
-    // Sort map to get highest replication first
-    List<Map.Entry<String, Integer>> repList = new LinkedList<>(repMap.entrySet());
-    Collections.sort(repList, new Comparator<Map.Entry<String, Integer>>() {
-      public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
-        return o2.getValue() - o1.getValue();
-      }
-    });
+  /**
+   * Length of the content of a stored chunk
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return length in bytes, or -1 if the chunk is not stored
+   */
+  public int chunkLength(String fileId, int nr) {
+    ChunkKey key = this.lookup(fileId, nr);
+    return key == null ? -1 : packs.length(key);
+  }
+
+  /**
+   * Send the content of a stored chunk to a channel straight from disk,
+   * without going through the cache
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @param prefix bytes written before the content, once the chunk is found
+   * @param length length of the chunk, see chunkLength
+   * @param target channel the content is written to
+   * @return false, before anything is written, if the chunk is no longer
+   *         stored
+   * @throws IOException if the chunk could not be sent, part of it may have been
+   */
+  public boolean transferChunk(String fileId, int nr, ByteBuffer prefix, int length, WritableByteChannel target)
+          throws IOException {
+    ChunkKey key = this.lookup(fileId, nr);
+    return key != null && packs.transfer(key, prefix, length, target);
+  }
+
+  /**
+   * Remove the content of a stored chunk from disk and from the cache
+   *
+   * @param key chunk to remove
+   */
+  private void removeChunkFromDisk(ChunkKey key) {
+    cache.remove(key);
+    try {
+      packs.delete(key);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    scan.discard(key);
+  }
 
-    // Put ordered keys into final list
-    for (Map.Entry<String, Integer> e : repList) {
-      if(e.getValue() > diff)
-        list.add(e.getKey());
+  /**
+   * Store the content of a chunk found in the storage folder and record it,
+   * unless the pack store already has it
+   *
+   * @param key     chunk key
+   * @param content chunk content
+   * @throws IOException if it could not be stored
+   */
+  void importChunk(ChunkKey key, ByteBuffer content) throws IOException {
+    if (packs.contains(key)) {
+      return;
     }
 
-    return list;
+    int size = content.remaining();
+    packs.put(key, content);
+
+    int desired = this.getDesiredReplication(key.getFileId(), key.getNr());
+    desired = desired == 0 ? UNKNOWN_REPLICATION : desired;
+    this.recordChunk(key.getFileId(), key.getNr(), size, desired);
+    log.chunkStore(key, size, desired);
   }
 
   /**
-   * Remove stored chunk with given fileId+chunkNo key
+   * Key of a chunk stored by this peer. While the storage folder is scanned
+   * a chunk that is not in the catalogue yet is imported first
    *
-   * @param id fileId+chunkNo key
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return chunk key, or null if the chunk is not stored
    */
-  public void removeChunk(String id) {
-    ChunkData cd;
-    if ((cd = chunks.get(id)) != null) {
-      availableSpace += cd.size;
-      chunks.remove(id);
-      desiredReplication.remove(id);
-      storingPeers.remove(id);
+  private ChunkKey lookup(String fileId, int nr) {
+    ChunkKey key = ChunkKey.find(fileId, nr);
+    if (key != null && chunks.containsKey(key)) {
+      return key;
+    }
 
+    if (scan.exists(fileId, nr)) {
+      key = ChunkKey.of(fileId, nr);
+      scan.importChunk(key);
+      if (chunks.containsKey(key)) {
+        return key;
+      }
     }
+    return null;
   }
 
   /**
-   * Remove stored chunk with given fileId+chunkNo key
+   * Returns the stored chunk with highest difference between actual
+   * replication and desired replication, if that difference is above diff
    *
-   * @param fileId
-   * @param chunkNo
+   * @param diff minimum difference, exclusive
+   * @return chunk key, or null if no stored chunk is above diff
    */
-  public void removeChunk(String fileId, String chunkNo) {
-    ChunkData cd;
-    if ((cd = chunks.get(fileId + chunkNo)) != null) {
-      availableSpace += cd.size;
-      chunks.remove(fileId + chunkNo);
-      desiredReplication.remove(fileId + chunkNo);
-      storingPeers.remove(fileId + chunkNo);
+  public ChunkKey mostReplicated(int diff) {
+    synchronized (surplus) {
+      this.refreshSurplus();
+      return surplus.highest(diff);
+    }
+  }
 
-      //delete the file
-      try {
-        Files.delete(Paths.get("peer" + peer.peerId + "/storage/" + fileId + "_" + chunkNo));
-      } catch (IOException e) {
-        e.printStackTrace();
+  /**
+   * Mark the surplus of a chunk as changed, after its replication or its
+   * place in the catalogue changed. The index is only refreshed when it is
+   * queried, so STOREDs and REMOVEDs do not take its lock
+   *
+   * @param key chunk key
+   */
+  private void updateSurplus(ChunkKey key) {
+    surplusChanged.add(key);
+  }
+
+  /**
+   * Recompute the surplus of the chunks marked as changed. Must be called
+   * holding the index lock, so concurrent refreshes do not leave an older
+   * count in the index. A chunk that changes again meanwhile is marked again
+   * and recomputed by the next refresh
+   */
+  private void refreshSurplus() {
+    for (ChunkKey key : surplusChanged) {
+      surplusChanged.remove(key);
+      ReplicaSet replicas = storingPeers.get(key);
+      Integer desired = desiredReplication.get(key);
+
+      if (replicas == null || desired == null || !chunks.containsKey(key)) {
+        surplus.remove(key);
+      } else {
+        surplus.update(key, replicas.count() - desired);
       }
     }
   }
 
+  /**
+   * Remove stored chunk with given key
+   *
+   * @param key chunk key
+   * @return true if this call removed it, false if it was not stored
+   */
+  public boolean removeChunk(ChunkKey key) {
+    // Only one of concurrent removals of the same chunk gets it
+    ChunkData cd = chunks.remove(key);
+    // Leaves the index after the catalogue, so a refresh does not put it back
+    this.updateSurplus(key);
+    if (cd == null) {
+      return false;
+    }
+
+    availableSpace.addAndGet(cd.size);
+    desiredReplication.remove(key);
+    storingPeers.remove(key);
+    this.unindexChunk(key);
+
+    //delete the content, the pack store is reconciled after a replay
+    if (!recovering) {
+      this.removeChunkFromDisk(key);
+    }
+    log.chunkRemove(key);
+    return true;
+  }
+
   /**
    * Delete chunk file from system
    *
    * @param fileId file id
    */
   public void delete(String fileId) {
-    //Remove from chunk map
-    for (Map.Entry<String, ChunkData> entry: this.chunks.entrySet()) {
-      if (entry.getKey().substring(0,64).equals(fileId)) {
-        //Add available space
-        int size = entry.getValue().size;
-        availableSpace += size;
+    // Including the chunks the storage scan did not import yet
+    scan.discardFile(fileId);
 
-        try {
-          Files.delete(Paths.get("peer" + peer.peerId + "/storage/" + fileId + "_" + entry.getValue().nr));
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    FileHandle file = FileHandle.find(fileId);
+    Set<ChunkKey> keys;
+    if (file == null || (keys = fileChunks.remove(file)) == null) {
+      return;
+    }
 
-        //Remove entry
-        chunks.remove(entry.getKey());
+    ArrayList<ChunkKey> stored = new ArrayList<>(keys.size());
+    for (ChunkKey key : keys) {
+      ChunkData cd = chunks.remove(key);
+      if (cd != null) {
+        //Add available space
+        availableSpace.addAndGet(cd.size);
+        cache.remove(key);
+        stored.add(key);
       }
+      desiredReplication.remove(key);
+      storingPeers.remove(key);
     }
 
-    //Remove from desired replication map
-    for (Map.Entry<String, Integer> entry: this.desiredReplication.entrySet()) {
-      if (entry.getKey().substring(0,64).equals(fileId)) {
-        desiredReplication.remove(entry.getKey());
+    // Dropped from the index right away, deleted files are not marked for the next refresh
+    synchronized (surplus) {
+      for (ChunkKey key : keys) {
+        surplusChanged.remove(key);
+        surplus.remove(key);
       }
     }
 
-    //Remove from replication map
-    for (Map.Entry<String, CopyOnWriteArrayList<String>> entry: storingPeers.entrySet()) {
-      if (entry.getKey().substring(0,64).equals(fileId)) {
-        storingPeers.remove(entry.getKey());
+    // One batch of tombstones, made durable together
+    if (!recovering) {
+      try {
+        packs.delete(stored);
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
+    log.chunksDelete(fileId);
+
+    FileHandle.forget(fileId);
+  }
 
+  /**
+   * Add a chunk to the index of its file
+   *
+   * @param key chunk key
+   */
+  private void indexChunk(ChunkKey key) {
+    fileChunks.computeIfAbsent(key.file, f -> ConcurrentHashMap.newKeySet()).add(key);
+  }
+
+  /**
+   * Remove a chunk from the index of its file, and the file once it has no
+   * chunks left
+   *
+   * @param key chunk key
+   */
+  private void unindexChunk(ChunkKey key) {
+    fileChunks.computeIfPresent(key.file, (f, keys) -> {
+      keys.remove(key);
+      return keys.isEmpty() ? null : keys;
+    });
   }
 
   /**
@@ -286,7 +544,8 @@ public class LocalStorage {
    * @return the chunk number nr of file fileId, or null
    */
   public ChunkData getChunk(String fileId, int nr) {
-    return chunks.get(fileId + nr);
+    ChunkKey key = this.lookup(fileId, nr);
+    return key == null ? null : chunks.get(key);
   }
 
   /**
@@ -307,74 +566,81 @@ public class LocalStorage {
    * @return
    */
   public int getReplication(String fileId, int nr) {
-    CopyOnWriteArrayList<String> list;
-    if ((list = storingPeers.get(fileId+nr)) != null) {
-      return list.size();
+    ChunkKey key = ChunkKey.find(fileId, nr);
+    ReplicaSet replicas;
+    if (key != null && (replicas = storingPeers.get(key)) != null) {
+      return replicas.count();
     }
     return 0;
   }
 
   /**
-   * Save chunk in restoringChunks map. Chunks will be used to restore the file.
+   * Records on the storing peers map that a peer has stored a certain chunk
    *
-   * @param cd chunk information
+   * @param fileId
+   * @param chunkNumber
+   * @param peerId
+   * @return true if the peer was not recorded yet
    */
-  public void saveChunk(ChunkData cd) {
-    String id = cd.fileId;
-    CopyOnWriteArrayList<ChunkData> list;
-    synchronized(this) {
-      if ((list = restoringChunks.get(id)) != null) {
-        for(ChunkData chunk : list) {
-          if(chunk.nr == cd.nr) return;
-        }
-        list.add(cd);
+  public boolean recordStore(String fileId, int chunkNumber, int peerId) {
+    ChunkKey key = ChunkKey.find(fileId, chunkNumber);
+    ReplicaSet replicas;
+
+    if (key == null || (replicas = storingPeers.get(key)) == null) {
+      return false;
+    }
+
+    // The set is only locked to log its changes in the order they were made
+    synchronized (replicas) {
+      if (!replicas.add(peerId)) {
+        return false;
       }
-    };
+      log.replicaAdd(key, peerId);
+    }
+    this.updateSurplus(key);
+    return true;
   }
 
   /**
-   * Prepare restoringChunks map to receive chunks
+   * Records on the storing peers map that a peer has removed a certain chunk
    *
-   * @param fileId id of file
+   * @param fileId
+   * @param chunkNumber
+   * @param peerId
+   * @return true if the peer was recorded
    */
-  public void restore(String fileId) {
-    if (restoringChunks.get(fileId) == null) {
-      restoringChunks.put(fileId, new CopyOnWriteArrayList<>());
+  public boolean recordRemoved(String fileId, int chunkNumber, int peerId) {
+    ChunkKey key = ChunkKey.find(fileId, chunkNumber);
+    ReplicaSet replicas;
+
+    if (key == null || (replicas = storingPeers.get(key)) == null) {
+      return false;
     }
-  }
 
-  /**
-   * Get list of chunks to use in restore
-   *
-   * @param fileId file id
-   * @return
-   */
-  public CopyOnWriteArrayList<ChunkData> getRestoring(String fileId) {
-    return restoringChunks.get(fileId);
+    synchronized (replicas) {
+      if (!replicas.remove(peerId)) {
+        return false;
+      }
+      log.replicaRemove(key, peerId);
+    }
+    this.updateSurplus(key);
+    return true;
   }
 
   /**
-   * Remove restoring list from map
+   * Return desired replication degree of chunk number nr of file with id fileId.
    *
    * @param fileId file id
+   * @param nr     chunk number
+   * @return desired replication, or 0 if unknown
    */
-  public void removeRestoring(String fileId) {
-    restoringChunks.remove(fileId);
-  }
-
-  /**
-   * Records on the storing peers map that a peer has stored a certain chunk
-   *
-   * @param fileId
-   * @param chunkNumber
-   * @param peerId
-   */
-  public void recordStore(String fileId, int chunkNumber, String peerId) {
-    CopyOnWriteArrayList<String> list;
-
-    if ((list = storingPeers.get(fileId + chunkNumber)) != null) {
-      list.add(peerId);
+  public int getDesiredReplication(String fileId, int nr) {
+    ChunkKey key = ChunkKey.find(fileId, nr);
+    Integer desired;
+    if (key != null && (desired = desiredReplication.get(key)) != null) {
+      return desired;
     }
+    return 0;
   }
 
   /**
@@ -385,11 +651,12 @@ public class LocalStorage {
    * @param peerId
    * @return
    */
-  public boolean testStoredChunkInPeer(String fileId, int chunkNumber, String peerId) {
-    CopyOnWriteArrayList<String> list;
+  public boolean testStoredChunkInPeer(String fileId, int chunkNumber, int peerId) {
+    ChunkKey key = ChunkKey.find(fileId, chunkNumber);
+    ReplicaSet replicas;
 
-    if ((list = storingPeers.get(fileId + chunkNumber)) != null) {
-      return list.contains(peerId);
+    if (key != null && (replicas = storingPeers.get(key)) != null) {
+      return replicas.contains(peerId);
     }
 
     return false;
@@ -406,46 +673,31 @@ public class LocalStorage {
   }
 
   /**
-   * Store given LocalStorage in a file
+   * Write a snapshot of the catalogue, so that it is recovered without
+   * replaying the changes logged so far
    *
-   * @param storage
+   * @throws IOException if the snapshot could not be written
    */
-  public static void serialize(LocalStorage storage) {
-    File file = new File("peer" + Peer.peerId + "/storage.peer");
-    if (file.exists()) {
-      file.delete();
-    }
-    try (FileOutputStream fileStream = new FileOutputStream(file);
-        ObjectOutputStream objStream = new ObjectOutputStream(fileStream)) {
-      file.createNewFile();
-      objStream.writeObject(storage);
-    } catch (IOException e) {
-      System.out.println("Error while serializing storage");
-      System.exit(100);
-    }
+  public void snapshot() throws IOException {
+    log.snapshot();
   }
 
   /**
-   * Create LocalStorage object from file
+   * Return the metadata log of the catalogue
    *
-   * @param peer peer of storage
-   * @return storage from file, or new one if file is missing
+   * @return the log
    */
-  public static LocalStorage deserialize(PeerService peer) {
-    File file = new File("peer" + peer.peerId + "/storage.peer");
-    LocalStorage s = new LocalStorage(peer);
-
-    if (file.exists()) {
-      try (FileInputStream fileStream = new FileInputStream(file);
-          ObjectInputStream objStream = new ObjectInputStream(fileStream)) {
-        s = (LocalStorage) objStream.readObject();
-      } catch (Exception e) {
-        System.out.println("Error while serializing storage");
-        System.exit(100);
-      }
-    }
+  public MetadataLog getLog() {
+    return log;
+  }
 
-    return s;
+  /**
+   * Return the scan of the storage folder
+   *
+   * @return the scan
+   */
+  public StorageScan getScan() {
+    return scan;
   }
 
   /**
@@ -454,7 +706,7 @@ public class LocalStorage {
    * @return
    */
   public long getAvailableSpace() {
-    return availableSpace;
+    return availableSpace.get();
   }
 
   /**
@@ -463,7 +715,7 @@ public class LocalStorage {
    * @return
    */
   public long getUsedSpace() {
-    return maxSpace - availableSpace;
+    return maxSpace - availableSpace.get();
   }
 
   /**
@@ -480,33 +732,54 @@ public class LocalStorage {
    *
    * @param finalSize final max size
    */
-  public void updateMax(int finalSize) {
-    maxSpace = finalSize;
-    availableSpace = maxSpace;
-    for(Map.Entry<String, ChunkData> e : chunks.entrySet()) {
-      availableSpace -= e.getValue().size;
+  public void updateMax(long finalSize) {
+    long used = 0;
+    for(Map.Entry<ChunkKey, ChunkData> e : chunks.entrySet()) {
+      used += e.getValue().size;
     }
+    maxSpace = finalSize;
+    availableSpace.set(maxSpace - used);
+    log.maxSpace(finalSize);
   }
 
   public void addRecentRemoved(String fileId, int nr) {
-    recentRemoved.add(fileId+nr);
+    recentRemoved.add(ChunkKey.probe(fileId, nr));
   }
 
   public void cancelChunkBackup(String fileId, int nr) {
-    recentPutchunk.add(fileId+nr);
+    recentPutchunk.add(ChunkKey.probe(fileId, nr));
+  }
+
+  public boolean getRecentRemoved(String fileId, int nr) {
+    return recentRemoved.contains(ChunkKey.probe(fileId, nr));
   }
 
-  public boolean getRecentRemoved(String id) {
-    return recentRemoved.contains(id);
+  public boolean getRecentPutchunk(String fileId, int nr) {
+    return recentPutchunk.contains(ChunkKey.probe(fileId, nr));
   }
 
-  public boolean getRecentPutchunk(String id) {
-    return recentPutchunk.contains(id);
+  public void clearRemoved(String fileId, int nr) {
+    ChunkKey key = ChunkKey.probe(fileId, nr);
+    recentPutchunk.remove(key);
+    recentRemoved.remove(key);
   }
 
-  public void clearRemoved(String id) {
-    recentPutchunk.remove(id);
-    recentRemoved.remove(id);
+  /**
+   * Return the cache of stored chunk contents
+   *
+   * @return the cache
+   */
+  public ChunkCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Return the store of chunk contents
+   *
+   * @return the pack store
+   */
+  public PackStore getPacks() {
+    return packs;
   }
 
   /**
@@ -523,27 +796,97 @@ public class LocalStorage {
    *
    * @return the chunks
    */
-  public ConcurrentHashMap<String, ChunkData> getChunks() {
+  public ConcurrentHashMap<ChunkKey, ChunkData> getChunks() {
     return chunks;
   }
 
+  /**
+   * Return the peers known to store each chunk
+   *
+   * @return storing peers map
+   */
+  public ConcurrentHashMap<ChunkKey, ReplicaSet> getStoringPeers() {
+    return storingPeers;
+  }
+
+  /**
+   * Return the id of the latest backed up version of a path
+   *
+   * @param filePath file path
+   * @return file id, or null if the path was not backed up
+   */
   public String getFileId(String filePath) {
-    for (Map.Entry<String,FileData> entry: files.entrySet()) {
-      if (entry.getValue().file.getPath().equals(filePath)) {
-        return entry.getValue().id;
-      }
+    return getFileId(filePath, 0);
+  }
+
+  /**
+   * Return the id of a backed up version of a path
+   *
+   * @param filePath file path
+   * @param version  version number, starting at 1 for the oldest, or 0 for the latest
+   * @return file id, or null if there is no such version
+   */
+  public String getFileId(String filePath, int version) {
+    CopyOnWriteArrayList<FileData> list = versions.get(new File(filePath).getPath());
+    if (list == null) {
+      return null;
     }
 
-    return null;
+    // Snapshot, the list may change meanwhile
+    Object[] snapshot = list.toArray();
+    int index = version == 0 ? snapshot.length - 1 : version - 1;
+    if (index < 0 || index >= snapshot.length) {
+      return null;
+    }
+    return ((FileData) snapshot[index]).id;
+  }
+
+  /**
+   * Return the backed up versions of a path, oldest first
+   *
+   * @param filePath file path
+   * @return versions, empty if the path was not backed up
+   */
+  public List<FileData> getVersions(String filePath) {
+    CopyOnWriteArrayList<FileData> list = versions.get(new File(filePath).getPath());
+    return list == null ? Collections.emptyList() : list;
+  }
+
+  /**
+   * Return the backed up versions of every path
+   *
+   * @return versions map
+   */
+  public ConcurrentHashMap<String, CopyOnWriteArrayList<FileData>> getVersions() {
+    return versions;
   }
 
   public void deleteFile(String fileId) {
-    this.files.remove(fileId);
+    FileData fd = this.files.remove(fileId);
+    if (fd != null) {
+      versions.computeIfPresent(fd.file.getPath(), (path, list) -> {
+        list.remove(fd);
+        return list.isEmpty() ? null : list;
+      });
+    }
 
-    for (Map.Entry<String, CopyOnWriteArrayList<String>> entry: storingPeers.entrySet()) {
-      if (entry.getKey().substring(0,64).equals(fileId)) {
-        storingPeers.remove(entry.getKey());
+    FileHandle file = FileHandle.find(fileId);
+    Set<ChunkKey> keys;
+    if (file != null && (keys = fileChunks.get(file)) != null) {
+      for (ChunkKey key : keys) {
+        // Chunks this peer stores keep their replicas and surplus entry, so
+        // reclaim still sees them, until they are removed or deleted
+        if (chunks.containsKey(key)) {
+          continue;
+        }
+        storingPeers.remove(key);
+        desiredReplication.remove(key);
+        this.updateSurplus(key);
+        this.unindexChunk(key);
       }
     }
+
+    log.fileDelete(fileId);
   }
+
 }
@@ -1,5 +1,5 @@
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 public class Message {
     private String version;
@@ -8,8 +8,10 @@ public class Message {
     private String fileId;
     private String chunckNo;
     private String replicationDeg;
-    private byte[] body;
+    private ByteBuffer body;
 
+    // Encoded once and reused for every send, cleared when a field changes
+    private byte[] headerBytes;
     private String header;
 
     static String CRLF = "\r\n\r\n";
@@ -26,8 +28,8 @@ public class Message {
         this.fileId = null;
         this.chunckNo = null;
         this. replicationDeg = null;
-        this.header = "";
         this.body = null;
+        this.buildHeader();
     }
 
     /**
@@ -60,47 +62,75 @@ public class Message {
      * @param body
      */
     public Message(String version, String messageType, String senderId, String fileId, String chunckNo, String replicationDeg, byte[] body) {
+        this(version, messageType, senderId, fileId, chunckNo, replicationDeg, body == null ? null : ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Creates a new header with the respective parameters. The body is not
+     * copied, its bytes between position and limit are sent as they are
+     * @param version
+     * @param messageType
+     * @param senderId
+     * @param fileId
+     * @param chunckNo
+     * @param replicationDeg
+     * @param body
+     */
+    public Message(String version, String messageType, String senderId, String fileId, String chunckNo, String replicationDeg, ByteBuffer body) {
         this.version = version;
         this.messageType = messageType;
         this.senderId = senderId;
         this.fileId = fileId;
         this.chunckNo = chunckNo;
         this.replicationDeg = replicationDeg;
-        this.body = body;
+        this.body = body == null ? null : body.slice().asReadOnlyBuffer();
 
         this.buildHeader();
     }
 
-    private void addStringToHeader(String str) {
+    private void addStringToHeader(StringBuilder builder, String str) {
         if (str == null) {
             return;
         }
 
-        if (this.header.isEmpty()) {
-            this.header += str;
-        }
-        else {
-            this.header += " " + str;
+        if (builder.length() != 0) {
+            builder.append(' ');
         }
+        builder.append(str);
     }
 
     /**
-     * Builds the header
+     * Builds the header and encodes it
      */
     private void buildHeader() {
-        this.header = "";
-
-        this.addStringToHeader(this.version);
-        this.addStringToHeader(this.messageType);
-        this.addStringToHeader(this.senderId);
-        this.addStringToHeader(this.fileId);
-        this.addStringToHeader(this.chunckNo);
-        this.addStringToHeader(this.replicationDeg);
-        this.addStringToHeader(CRLF);
+        StringBuilder builder = new StringBuilder(128);
+
+        this.addStringToHeader(builder, this.version);
+        this.addStringToHeader(builder, this.messageType);
+        this.addStringToHeader(builder, this.senderId);
+        this.addStringToHeader(builder, this.fileId);
+        this.addStringToHeader(builder, this.chunckNo);
+        this.addStringToHeader(builder, this.replicationDeg);
+        this.addStringToHeader(builder, CRLF);
+
+        this.header = builder.toString();
+        this.headerBytes = this.header.getBytes(StandardCharsets.US_ASCII);
     }
 
-    public byte[] getBody() {
-        return body;
+    /**
+     * Marks the header as changed, it is rebuilt the next time it is used
+     */
+    private void invalidateHeader() {
+        this.header = null;
+        this.headerBytes = null;
+    }
+
+    /**
+     * Returns the body without copying it
+     * @return read only view of the body, or null if there is none
+     */
+    public ByteBuffer getBody() {
+        return body == null ? null : body.duplicate();
     }
 
     public String getVersion() {
@@ -113,7 +143,7 @@ public class Message {
      */
     public void setVersion(String version) {
         this.version = version;
-        this.buildHeader();
+        this.invalidateHeader();
     }
 
     public String getMessageType() {
@@ -126,7 +156,7 @@ public class Message {
      */
     public void setMessageType(String messageType) {
         this.messageType = messageType;
-        this.buildHeader();
+        this.invalidateHeader();
     }
 
     public String getSenderId() {
@@ -139,7 +169,7 @@ public class Message {
      */
     public void setSenderId(String senderId) {
         this.senderId = senderId;
-        this.buildHeader();
+        this.invalidateHeader();
     }
 
     public String getFileId() {
@@ -152,7 +182,7 @@ public class Message {
      */
     public void setFileId(String fileId) {
         this.fileId = fileId;
-        this.buildHeader();
+        this.invalidateHeader();
     }
 
     public String getChunckNo() {
@@ -165,7 +195,7 @@ public class Message {
      */
     public void setChunckNo(String chunckNo) {
         this.chunckNo = chunckNo;
-        this.buildHeader();
+        this.invalidateHeader();
     }
 
     public String getReplicationDeg() {
@@ -178,7 +208,7 @@ public class Message {
      */
     public void setReplicationDeg(String replicationDeg) {
         this.replicationDeg = replicationDeg;
-        this.buildHeader();
+        this.invalidateHeader();
     }
 
     /**
@@ -186,130 +216,73 @@ public class Message {
      * @return the header string
      */
     public String getHeader() {
+        if (this.header == null) {
+            this.buildHeader();
+        }
         return this.header;
     }
 
-
     /**
-     * Returns the message as a byte array
-     * @return
+     * Method used to get the encoded header
+     * @return the header bytes, shared between calls and not to be modified
      */
-    public byte[] getBytes() {
-        if (this.body != null) {
-            byte[] headerUtf8 = new String(this.header.getBytes(), StandardCharsets.UTF_8).getBytes();
-            byte[] ret = new byte[headerUtf8.length + this.body.length];
-
-            System.arraycopy(headerUtf8,0,ret,0,headerUtf8.length);
-            System.arraycopy(this.body,0,ret,headerUtf8.length,this.body.length);
-            return ret;
-        }
-        else {
-            return new String(this.header.getBytes(), StandardCharsets.UTF_8).getBytes();
+    public byte[] getHeaderBytes() {
+        if (this.headerBytes == null) {
+            this.buildHeader();
         }
+        return this.headerBytes;
     }
 
-
-    // =============== MESSAGE PARSING =======================
-
     /**
-     * Parses the putchunk message
-     * @param msg token string array
-     * @return
-     * @throws MessageParseException
+     * Returns the size of the message on the wire
+     * @return header plus body length
      */
-    static private Message parsePutChunk(String[] msg, byte[] body) throws MessageParseException {
-        if (msg.length != 6) {
-            throw new MessageParseException("Invalid PUTCHUNK message");
-        }
-
-        return new Message(msg[0],msg[1],msg[2],msg[3],msg[4],msg[5],body);
+    public int getLength() {
+        return this.getHeaderBytes().length + (this.body == null ? 0 : this.body.remaining());
     }
 
     /**
-     * Parses Stored, getchunk and removed message types
-     * @param msg token string array
-     * @return
-     * @throws MessageParseException
+     * Returns the header and the body as separate buffers, to be sent with a
+     * gathering write. Neither is copied and each call returns new buffers, so
+     * the same message can be sent by several threads
+     * @return header and body buffers
      */
-    static private Message parseSimpleMessage(String[] msg) throws MessageParseException {
-        if (msg.length != 5) {
-            switch (msg[1]) {
-                case "STORED":
-                    throw new MessageParseException("Invalid STORED message");
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer header = ByteBuffer.wrap(this.getHeaderBytes());
 
-                case "GETCHUNK":
-                    throw  new MessageParseException("Invalid Getchunk message");
-
-                case "REMOVED":
-                    throw  new MessageParseException("Invalid REMOVED message");
-
-                default:
-                    throw  new MessageParseException("Invalid simple message");
-            }
+        if (this.body == null) {
+            return new ByteBuffer[] { header };
         }
-
-        return new Message(msg[0],msg[1],msg[2],msg[3],msg[4],null);
+        return new ByteBuffer[] { header, this.body.duplicate() };
     }
 
-    static private Message parseChunk(String[] msg, byte[] body) throws MessageParseException {
-        if (msg.length != 5) {
-            throw new MessageParseException("Invalid CHUNK message");
-        }
-
-        return new Message(msg[0],msg[1],msg[2],msg[3],msg[4],null,body);
-    }
+    /**
+     * Returns the message as a byte array
+     * @return
+     */
+    public byte[] getBytes() {
+        byte[] header = this.getHeaderBytes();
+        byte[] ret = new byte[this.getLength()];
 
-    static private Message parseDelete(String[] msg) throws MessageParseException {
-        if (msg.length != 4) {
-            throw new MessageParseException("Invalid DELETE message");
+        System.arraycopy(header, 0, ret, 0, header.length);
+        if (this.body != null) {
+            this.body.duplicate().get(ret, header.length, this.body.remaining());
         }
-
-        return new Message(msg[0],msg[1],msg[2],msg[3],null,null);
+        return ret;
     }
 
-    static private int findFlagIndex(byte[] message) {
-        for (int i = 0; i < message.length; i++) {
-            if (message[i] == CR && message[i+1] == LF && message[i+2] == CR && message[i+3] == LF) {
-                return i;
-            }
-        }
 
-        return -1;
-    }
+    // =============== MESSAGE PARSING =======================
 
+    /**
+     * Parses a message into an owned Message. The hot receive path uses
+     * MessageView directly, which does not copy the message
+     * @param message buffer holding the message
+     * @param msgLen length of the message
+     * @return the parsed message
+     * @throws MessageParseException
+     */
     static Message parseMessage(byte[] message, int msgLen) throws MessageParseException {
-        int flagIndex = findFlagIndex(message);
-
-        if (flagIndex == -1) {
-            throw new MessageParseException("Flag not found");
-        }
-
-        byte[] header = Arrays.copyOfRange(message,0,flagIndex-1);
-        byte[] body = null;
-
-        if (flagIndex + 4 < msgLen) {
-            body = Arrays.copyOfRange(message,flagIndex+4,msgLen);
-        }
-
-        String[] tokens = new String(header, StandardCharsets.UTF_8).split(" ");
-
-        switch (tokens[1]) {
-            case "PUTCHUNK":
-                return parsePutChunk(tokens,body);
-
-            case "REMOVED":
-            case "STORED":
-            case "GETCHUNK":
-                return parseSimpleMessage(tokens);
-
-            case "CHUNK":
-                return parseChunk(tokens,body);
-
-            case "DELETE":
-                return parseDelete(tokens);
-
-            default:
-                throw new MessageParseException("Invalid message");
-        }
+        return new MessageView().wrap(ByteBuffer.wrap(message), msgLen).toMessage();
     }
 }
@@ -0,0 +1,29 @@
+public class MessageSendException extends Exception {
+    private static final long serialVersionUID = 1L;
+    private String type;
+    private boolean retryable;
+
+    MessageSendException(String type, boolean retryable) {
+        super();
+        this.type = type;
+        this.retryable = retryable;
+    }
+
+    MessageSendException(String type, boolean retryable, Throwable cause) {
+        super(cause);
+        this.type = type;
+        this.retryable = retryable;
+    }
+
+    /**
+     * Tells if sending the same message again may succeed
+     * @return true if the failure was transient
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public void printInfo() {
+        System.err.println("MessageSendException: " + this.type + (this.retryable ? " (retryable)" : ""));
+    }
+}
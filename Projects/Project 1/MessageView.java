@@ -0,0 +1,414 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight view over a received message. The header fields are read in place
+ * from the buffer the message was received in: numbers are parsed straight
+ * from the bytes, the file id is only decoded into a String when asked for and
+ * the body is exposed as a slice of the buffer, without copying it.
+ * A view is only valid while the buffer it wraps is not reused.
+ */
+public class MessageView {
+    static final byte SP = (byte) ' ';
+    static final int MAX_TOKENS = 6;
+    // Chunk numbers have at most 6 digits
+    static final int CHUNK_NO_DIGITS = 6;
+    // File ids are SHA-256 hashes in hexadecimal
+    static final int FILE_ID_LENGTH = 64;
+
+    static final byte[] PUTCHUNK = "PUTCHUNK".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] STORED = "STORED".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] GETCHUNK = "GETCHUNK".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CHUNK = "CHUNK".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] DELETE = "DELETE".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] REMOVED = "REMOVED".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<MessageView> LOCAL = ThreadLocal.withInitial(MessageView::new);
+
+    private ByteBuffer buffer;
+    private int length;
+
+    private final int[] tokenStart = new int[MAX_TOKENS];
+    private final int[] tokenEnd = new int[MAX_TOKENS];
+    private int tokens;
+    private int headerEnd;
+
+    private String messageType;
+    private int versionMajor;
+    private int versionMinor;
+    private int senderId;
+    private int chunkNo;
+    private int replicationDeg;
+    private int bodyOffset;
+    private int bodyLength;
+    private String fileId;
+
+    /**
+     * Returns the view owned by the calling thread, so that workers can parse
+     * messages without allocating a view for each one
+     * @return the thread's view
+     */
+    static MessageView local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Parses the header of the message in the first msgLen bytes of the buffer
+     * @param buffer buffer holding the message, starting at index 0
+     * @param msgLen length of the message
+     * @return this view
+     * @throws MessageParseException if the message is not a valid 1.0 message
+     */
+    public MessageView wrap(ByteBuffer buffer, int msgLen) throws MessageParseException {
+        this.buffer = buffer;
+        this.length = Math.min(msgLen, buffer.limit());
+        this.fileId = null;
+        this.chunkNo = -1;
+        this.replicationDeg = -1;
+
+        this.headerEnd = findFlagIndex();
+        if (this.headerEnd == -1) {
+            throw new MessageParseException("Flag not found");
+        }
+
+        this.tokenize();
+        if (this.tokens < 4) {
+            throw new MessageParseException("Invalid message");
+        }
+
+        this.messageType = this.parseType();
+        this.parseVersion();
+        this.senderId = this.parseInt(2);
+        this.checkFileId();
+
+        switch (this.messageType) {
+            case "PUTCHUNK":
+                if (this.tokens != 6) {
+                    throw new MessageParseException("Invalid PUTCHUNK message");
+                }
+                this.chunkNo = this.parseChunkNo();
+                this.replicationDeg = this.parseInt(5);
+                break;
+
+            case "STORED":
+            case "GETCHUNK":
+            case "REMOVED":
+            case "CHUNK":
+                if (this.tokens != 5) {
+                    throw new MessageParseException("Invalid " + this.messageType + " message");
+                }
+                this.chunkNo = this.parseChunkNo();
+                break;
+
+            case "DELETE":
+                if (this.tokens != 4) {
+                    throw new MessageParseException("Invalid DELETE message");
+                }
+                break;
+        }
+
+        this.bodyOffset = this.headerEnd + 4;
+        this.bodyLength = this.length - this.bodyOffset;
+
+        return this;
+    }
+
+    /**
+     * Finds the start of the CRLF CRLF sequence that ends the header
+     * @return index of the sequence or -1 if it is not present
+     */
+    private int findFlagIndex() {
+        for (int i = 0; i + 3 < this.length; i++) {
+            if (buffer.get(i) == Message.CR && buffer.get(i + 1) == Message.LF
+                    && buffer.get(i + 2) == Message.CR && buffer.get(i + 3) == Message.LF) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Splits the header in space separated tokens, recording their bounds
+     */
+    private void tokenize() throws MessageParseException {
+        this.tokens = 0;
+        int i = 0;
+
+        while (i < this.headerEnd) {
+            while (i < this.headerEnd && buffer.get(i) == SP) {
+                i++;
+            }
+            if (i == this.headerEnd) {
+                break;
+            }
+
+            if (this.tokens == MAX_TOKENS) {
+                throw new MessageParseException("Too many header fields");
+            }
+
+            this.tokenStart[this.tokens] = i;
+            while (i < this.headerEnd && buffer.get(i) != SP) {
+                i++;
+            }
+            this.tokenEnd[this.tokens] = i;
+            this.tokens++;
+        }
+    }
+
+    private boolean tokenEquals(int token, byte[] value) {
+        int start = this.tokenStart[token];
+        if (this.tokenEnd[token] - start != value.length) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(start + i) != value[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String parseType() throws MessageParseException {
+        if (this.tokenEquals(1, PUTCHUNK)) return "PUTCHUNK";
+        if (this.tokenEquals(1, STORED)) return "STORED";
+        if (this.tokenEquals(1, GETCHUNK)) return "GETCHUNK";
+        if (this.tokenEquals(1, CHUNK)) return "CHUNK";
+        if (this.tokenEquals(1, DELETE)) return "DELETE";
+        if (this.tokenEquals(1, REMOVED)) return "REMOVED";
+
+        throw new MessageParseException("Invalid message");
+    }
+
+    /**
+     * Parses the <n>.<m> version token
+     */
+    private void parseVersion() throws MessageParseException {
+        int start = this.tokenStart[0];
+        int end = this.tokenEnd[0];
+        int dot = start;
+
+        while (dot < end && buffer.get(dot) != '.') {
+            dot++;
+        }
+
+        if (dot == end) {
+            throw new MessageParseException("Invalid version");
+        }
+
+        this.versionMajor = this.parseInt(start, dot);
+        this.versionMinor = this.parseInt(dot + 1, end);
+    }
+
+    /**
+     * Checks that the file id token is a hash in hexadecimal, without decoding it
+     */
+    private void checkFileId() throws MessageParseException {
+        int start = this.tokenStart[3];
+        int end = this.tokenEnd[3];
+        if (end - start != FILE_ID_LENGTH) {
+            throw new MessageParseException("Invalid file id");
+        }
+
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if ((b < '0' || b > '9') && (b < 'A' || b > 'F') && (b < 'a' || b > 'f')) {
+                throw new MessageParseException("Invalid file id");
+            }
+        }
+    }
+
+    private int parseChunkNo() throws MessageParseException {
+        if (this.tokenEnd[4] - this.tokenStart[4] > CHUNK_NO_DIGITS) {
+            throw new MessageParseException("Invalid chunk number");
+        }
+        return this.parseInt(4);
+    }
+
+    private int parseInt(int token) throws MessageParseException {
+        return this.parseInt(this.tokenStart[token], this.tokenEnd[token]);
+    }
+
+    private int parseInt(int start, int end) throws MessageParseException {
+        if (start == end || end - start > 9) {
+            throw new MessageParseException("Invalid number");
+        }
+
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new MessageParseException("Invalid number");
+            }
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public int getVersionMajor() {
+        return versionMajor;
+    }
+
+    public int getVersionMinor() {
+        return versionMinor;
+    }
+
+    /**
+     * Method used to get the version string
+     * @return the version, without allocating for version 1.0
+     */
+    public String getVersion() {
+        if (this.versionMajor == 1 && this.versionMinor == 0) {
+            return "1.0";
+        }
+        return this.versionMajor + "." + this.versionMinor;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * @return the chunk number, or -1 for messages without one
+     */
+    public int getChunkNo() {
+        return chunkNo;
+    }
+
+    /**
+     * @return the replication degree, or -1 for messages without one
+     */
+    public int getReplicationDeg() {
+        return replicationDeg;
+    }
+
+    /**
+     * Decodes the file id. The string is created on the first call only
+     * @return the file id
+     */
+    public String getFileId() {
+        if (this.fileId == null && this.tokens > 3) {
+            int start = this.tokenStart[3];
+            byte[] bytes = new byte[this.tokenEnd[3] - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            this.fileId = new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        return this.fileId;
+    }
+
+    /**
+     * Compares the file id with the given one without decoding it
+     * @param fileId file id
+     * @return true if they are the same
+     */
+    public boolean fileIdEquals(String fileId) {
+        if (this.tokens <= 3) {
+            return false;
+        }
+
+        int start = this.tokenStart[3];
+        int len = this.tokenEnd[3] - start;
+        if (fileId.length() != len) {
+            return false;
+        }
+
+        for (int i = 0; i < len; i++) {
+            if (buffer.get(start + i) != fileId.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decodes the 64 hex digit file id into its 32 byte binary form
+     * @param dst array with at least 32 positions
+     * @return false if the file id is not 64 hex digits
+     */
+    public boolean getFileIdBinary(byte[] dst) {
+        int start = this.tokenStart[3];
+        if (this.tokens <= 3 || this.tokenEnd[3] - start != 64) {
+            return false;
+        }
+
+        for (int i = 0; i < 32; i++) {
+            int high = Character.digit(buffer.get(start + i * 2), 16);
+            int low = Character.digit(buffer.get(start + i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            dst[i] = (byte) ((high << 4) | low);
+        }
+
+        return true;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Returns the body as a slice of the receive buffer. No bytes are copied
+     * @return slice with the body
+     */
+    public ByteBuffer getBody() {
+        ByteBuffer body = this.buffer.duplicate();
+        body.limit(this.bodyOffset + this.bodyLength);
+        body.position(this.bodyOffset);
+        return body.slice();
+    }
+
+    /**
+     * Copies the body into a new array, for when it must outlive the buffer
+     * @return the body bytes
+     */
+    public byte[] copyBody() {
+        byte[] body = new byte[this.bodyLength];
+        this.getBody().get(body);
+        return body;
+    }
+
+    /**
+     * Method used to get the header string, for logging
+     * @return the header string
+     */
+    public String getHeader() {
+        byte[] bytes = new byte[this.headerEnd];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Creates an owned Message with the contents of the view
+     * @return the message
+     */
+    public Message toMessage() {
+        String chunk = this.chunkNo == -1 ? null : Integer.toString(this.chunkNo);
+        String replication = this.replicationDeg == -1 ? null : Integer.toString(this.replicationDeg);
+        byte[] body = this.bodyLength > 0 ? this.copyBody() : null;
+
+        return new Message(this.getVersion(), this.messageType, Integer.toString(this.senderId), this.getFileId(),
+                chunk, replication, body);
+    }
+}
@@ -0,0 +1,667 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Durable copy of the catalogue of a LocalStorage. Every change of the
+ * catalogue is appended to a log as a small record, and from time to time the
+ * whole catalogue is written to a compact snapshot, after which the log it
+ * covers is deleted. On start the snapshot is loaded and the log written after
+ * it is replayed, so a restart reads the snapshot and at most one snapshot
+ * interval of records instead of the whole history.
+ * Each log record is
+ *   length (4) | crc (4) | type (1) | fields
+ * The log is split in segments. A snapshot first rolls the log to a new
+ * segment and then reads the catalogue while it keeps changing: every change
+ * it may miss is in a segment it does not cover. Replaying a record gives the
+ * same result whether the snapshot already has it or not, so the snapshot
+ * needs no lock on the catalogue.
+ * Records are written through to the OS and forced by a background thread
+ * every SYNC_INTERVAL. The chunk contents are already durable in the pack
+ * store, so at most the last records of the catalogue are lost in a crash.
+ * Replica changes, one per STORED and REMOVED, are the bulk of the records:
+ * they are only queued by the threads that make them, without a lock, and
+ * written in one batch by the background thread, or before the next other
+ * record so that the log keeps the order of the changes.
+ */
+public class MetadataLog {
+  // How often the log is forced to disk, can be set with -Dsdis.metadata.sync=<ms>
+  final static long SYNC_INTERVAL = Long.getLong("sdis.metadata.sync", 200);
+  // A snapshot is taken this often if the catalogue changed, or once the log reaches SNAPSHOT_LOG_SIZE
+  final static long SNAPSHOT_INTERVAL = Long.getLong("sdis.metadata.snapshot.interval", 5 * 60 * 1000);
+  final static long SNAPSHOT_LOG_SIZE = Long.getLong("sdis.metadata.snapshot.size", 16L * 1024 * 1024);
+
+  final static byte FILE_BACKUP = 1;
+  final static byte FILE_DELETE = 2;
+  final static byte CHUNK_STORE = 3;
+  final static byte CHUNK_REMOVE = 4;
+  final static byte CHUNKS_DELETE = 5;
+  final static byte REPLICA_ADD = 6;
+  final static byte REPLICA_REMOVE = 7;
+  final static byte MAX_SPACE = 8;
+
+  final static int SNAPSHOT_MAGIC = 0x5344434C;
+  final static int SNAPSHOT_FORMAT = 1;
+  final static int RECORD_HEADER = 4 + 4;
+  // Large enough for a record with the longest path
+  final static int MAX_RECORD = 16 * 1024;
+  // Records written with one call
+  final static int BATCH_SIZE = 64 * 1024;
+
+  final static String SNAPSHOT = "snapshot";
+  final static String SEGMENT_PREFIX = "log-";
+
+  final private Path dir;
+  final private LocalStorage storage;
+  final private Object snapshotLock;
+  final private ConcurrentLinkedQueue<ReplicaChange> replicaChanges;
+  // Set once the log is replayed, changes are logged from then on
+  private volatile boolean open;
+
+  // Guarded by this, as is every append
+  final private ByteBuffer batch;
+  final private CRC32 crc;
+  private int recordStart;
+  private FileChannel log;
+  private long segment;
+  private long segmentSize;
+  private boolean dirty;
+
+  private long lastSnapshot;
+  private long snapshots;
+
+  /**
+   * @param dir     folder of the snapshot and the log, created if missing
+   * @param storage catalogue kept by the log
+   */
+  public MetadataLog(Path dir, LocalStorage storage) {
+    this.dir = dir;
+    this.storage = storage;
+    this.snapshotLock = new Object();
+    this.replicaChanges = new ConcurrentLinkedQueue<>();
+    this.batch = ByteBuffer.allocate(BATCH_SIZE);
+    this.crc = new CRC32();
+  }
+
+  /**
+   * Queued change of the replicas of a chunk
+   */
+  private static class ReplicaChange {
+    final byte type;
+    final ChunkKey key;
+    final int peerId;
+
+    ReplicaChange(byte type, ChunkKey key, int peerId) {
+      this.type = type;
+      this.key = key;
+      this.peerId = peerId;
+    }
+  }
+
+  /**
+   * Load the snapshot and replay the log into the catalogue, which must be
+   * empty, then take a new snapshot and start logging its changes
+   *
+   * @throws IOException if the snapshot or the log can not be read
+   */
+  public void recover() throws IOException {
+    Files.createDirectories(dir);
+
+    long first = 0;
+    Path snapshot = dir.resolve(SNAPSHOT);
+    if (Files.exists(snapshot)) {
+      first = this.load(snapshot);
+    }
+
+    TreeMap<Long, Path> segments = this.segments();
+    for (Map.Entry<Long, Path> e : segments.entrySet()) {
+      if (e.getKey() >= first) {
+        this.replay(e.getValue());
+      }
+    }
+
+    synchronized (this) {
+      segment = segments.isEmpty() ? first : Math.max(first, segments.lastKey());
+    }
+
+    // The replayed segments are not appended to, the snapshot replaces them
+    this.snapshot();
+    open = true;
+
+    Thread syncer = new Thread(this::run, "metadata-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  // Changes of the catalogue, logged once they are made in memory
+
+  public synchronized void fileBackup(FileData fd) {
+    if (this.begin(FILE_BACKUP)) {
+      putString(fd.id);
+      putString(fd.file.getPath());
+      batch.putInt(fd.replicationDegree);
+      batch.putLong(fd.size);
+      batch.putLong(fd.backupTime);
+      this.append();
+    }
+  }
+
+  public synchronized void fileDelete(String fileId) {
+    if (this.begin(FILE_DELETE)) {
+      putString(fileId);
+      this.append();
+    }
+  }
+
+  public synchronized void chunkStore(ChunkKey key, int size, int desiredReplication) {
+    if (this.begin(CHUNK_STORE)) {
+      putKey(key);
+      batch.putInt(size);
+      batch.putInt(desiredReplication);
+      this.append();
+    }
+  }
+
+  public synchronized void chunkRemove(ChunkKey key) {
+    if (this.begin(CHUNK_REMOVE)) {
+      putKey(key);
+      this.append();
+    }
+  }
+
+  public synchronized void chunksDelete(String fileId) {
+    if (this.begin(CHUNKS_DELETE)) {
+      putString(fileId);
+      this.append();
+    }
+  }
+
+  /**
+   * Queue a replica change. The changes of a chunk must be queued in the
+   * order they are made, LocalStorage queues them holding the chunk's
+   * ReplicaSet
+   */
+  public void replicaAdd(ChunkKey key, int peerId) {
+    if (open) {
+      replicaChanges.offer(new ReplicaChange(REPLICA_ADD, key, peerId));
+    }
+  }
+
+  public void replicaRemove(ChunkKey key, int peerId) {
+    if (open) {
+      replicaChanges.offer(new ReplicaChange(REPLICA_REMOVE, key, peerId));
+    }
+  }
+
+  public synchronized void maxSpace(long maxSpace) {
+    if (this.begin(MAX_SPACE)) {
+      batch.putLong(maxSpace);
+      this.append();
+    }
+  }
+
+  /**
+   * Encode the queued replica changes. Must be called holding the log lock
+   */
+  private void drain() {
+    ReplicaChange change;
+    while ((change = replicaChanges.poll()) != null) {
+      if (this.begin(change.type)) {
+        putKey(change.key);
+        batch.putInt(change.peerId);
+        this.seal();
+      }
+    }
+  }
+
+  /**
+   * Start encoding a record, after the queued replica changes, which were made
+   * before it
+   *
+   * @param type record type
+   * @return false if changes are not logged yet, while the log is replayed
+   */
+  private boolean begin(byte type) {
+    if (log == null) {
+      return false;
+    }
+
+    if (type != REPLICA_ADD && type != REPLICA_REMOVE) {
+      this.drain();
+    }
+    if (batch.remaining() < MAX_RECORD) {
+      this.flush();
+    }
+
+    recordStart = batch.position();
+    batch.position(recordStart + RECORD_HEADER);
+    batch.put(type);
+    return true;
+  }
+
+  /**
+   * Seal the record being encoded
+   */
+  private void seal() {
+    int length = batch.position() - recordStart - RECORD_HEADER;
+    crc.reset();
+    crc.update(batch.array(), recordStart + RECORD_HEADER, length);
+    batch.putInt(recordStart, length);
+    batch.putInt(recordStart + 4, (int) crc.getValue());
+  }
+
+  /**
+   * Seal the record being encoded and write it to the active segment, with
+   * the replica changes before it
+   */
+  private void append() {
+    this.seal();
+    this.flush();
+  }
+
+  /**
+   * Write the encoded records to the active segment
+   */
+  private void flush() {
+    batch.flip();
+    try {
+      int length = batch.remaining();
+      while (batch.hasRemaining()) {
+        log.write(batch);
+      }
+      segmentSize += length;
+      dirty |= length > 0;
+    } catch (IOException e) {
+      // The catalogue in memory is still right, and the next snapshot has the change
+      e.printStackTrace();
+    }
+    batch.clear();
+  }
+
+  private void putString(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    batch.putShort((short) bytes.length);
+    batch.put(bytes);
+  }
+
+  private void putKey(ChunkKey key) {
+    putString(key.getFileId());
+    batch.putInt(key.getNr());
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Apply the records of a segment to the catalogue. A torn or corrupt record
+   * ends the segment, it can only be the tail written before a crash
+   *
+   * @param path segment
+   * @throws IOException if the segment can not be read
+   */
+  private void replay(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+      ByteBuffer body = ByteBuffer.allocate(MAX_RECORD);
+      CRC32 check = new CRC32();
+
+      while (true) {
+        header.clear();
+        if (!readFully(channel, header)) {
+          return;
+        }
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD - RECORD_HEADER) {
+          System.out.println("Metadata log " + path.getFileName() + " ends with a corrupt record");
+          return;
+        }
+
+        body.clear().limit(length);
+        if (!readFully(channel, body)) {
+          return;
+        }
+        check.reset();
+        check.update(body.array(), 0, length);
+        if ((int) check.getValue() != header.getInt(4)) {
+          System.out.println("Metadata log " + path.getFileName() + " ends with a corrupt record");
+          return;
+        }
+
+        body.flip();
+        this.apply(body);
+      }
+    }
+  }
+
+  private static boolean readFully(FileChannel channel, ByteBuffer dst) throws IOException {
+    while (dst.hasRemaining()) {
+      if (channel.read(dst) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Redo the change of a record
+   *
+   * @param body record, after its header
+   */
+  private void apply(ByteBuffer body) {
+    byte type = body.get();
+    switch (type) {
+      case FILE_BACKUP: {
+        String fileId = getString(body);
+        String path = getString(body);
+        int replicationDegree = body.getInt();
+        long size = body.getLong();
+        long backupTime = body.getLong();
+        storage.backup(new FileData(fileId, path, replicationDegree, size, backupTime), replicationDegree);
+        break;
+      }
+      case FILE_DELETE:
+        storage.deleteFile(getString(body));
+        break;
+      case CHUNK_STORE: {
+        String fileId = getString(body);
+        int nr = body.getInt();
+        int size = body.getInt();
+        storage.recordChunk(fileId, nr, size, body.getInt());
+        break;
+      }
+      case CHUNK_REMOVE: {
+        ChunkKey key = ChunkKey.find(getString(body), body.getInt());
+        if (key != null) {
+          storage.removeChunk(key);
+        }
+        break;
+      }
+      case CHUNKS_DELETE:
+        storage.delete(getString(body));
+        break;
+      case REPLICA_ADD: {
+        String fileId = getString(body);
+        int nr = body.getInt();
+        storage.recordStore(fileId, nr, body.getInt());
+        break;
+      }
+      case REPLICA_REMOVE: {
+        String fileId = getString(body);
+        int nr = body.getInt();
+        storage.recordRemoved(fileId, nr, body.getInt());
+        break;
+      }
+      case MAX_SPACE:
+        storage.updateMax(body.getLong());
+        break;
+      default:
+        System.out.println("Unknown metadata log record " + type);
+    }
+  }
+
+  /**
+   * Write the whole catalogue to a new snapshot and delete the log it covers.
+   * The snapshot is written to a temporary file, forced and renamed over the
+   * previous one, so there is always a complete snapshot on disk
+   *
+   * @throws IOException if the snapshot could not be written
+   */
+  public void snapshot() throws IOException {
+    synchronized (snapshotLock) {
+      long first;
+      synchronized (this) {
+        this.roll();
+        first = segment;
+      }
+
+      Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+      CRC32 check = new CRC32();
+      try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+           DataOutputStream out = new DataOutputStream(
+                   new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), check))) {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_FORMAT);
+        out.writeLong(first);
+        this.writeCatalogue(out);
+        out.writeInt((int) check.getValue());
+        out.flush();
+        file.getFD().sync();
+      }
+
+      Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+              StandardCopyOption.REPLACE_EXISTING);
+      try (FileChannel folder = FileChannel.open(dir, StandardOpenOption.READ)) {
+        folder.force(true);
+      }
+
+      for (Map.Entry<Long, Path> e : this.segments().entrySet()) {
+        if (e.getKey() < first) {
+          Files.deleteIfExists(e.getValue());
+        }
+      }
+
+      synchronized (this) {
+        lastSnapshot = System.currentTimeMillis();
+        snapshots++;
+      }
+    }
+  }
+
+  /**
+   * Close the active segment and open the next one
+   */
+  private void roll() throws IOException {
+    if (log != null) {
+      this.drain();
+      this.flush();
+      log.force(false);
+      log.close();
+    }
+
+    segment++;
+    log = FileChannel.open(dir.resolve(segmentName(segment)), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    segmentSize = 0;
+    dirty = false;
+  }
+
+  private void writeCatalogue(DataOutputStream out) throws IOException {
+    out.writeLong(storage.getMaxSpace());
+
+    // Copied first, the maps change while they are written
+    ArrayList<FileData> files = new ArrayList<>();
+    for (CopyOnWriteArrayList<FileData> list : storage.getVersions().values()) {
+      files.addAll(list);
+    }
+    out.writeInt(files.size());
+    for (FileData fd : files) {
+      out.writeUTF(fd.id);
+      out.writeUTF(fd.file.getPath());
+      out.writeInt(fd.replicationDegree);
+      out.writeLong(fd.size);
+      out.writeLong(fd.backupTime);
+    }
+
+    ArrayList<ChunkData> chunks = new ArrayList<>(storage.getChunks().values());
+    out.writeInt(chunks.size());
+    for (ChunkData cd : chunks) {
+      out.writeUTF(cd.fileId);
+      out.writeInt(cd.nr);
+      out.writeInt(cd.size);
+      out.writeInt(storage.getDesiredReplication(cd.fileId, cd.nr));
+    }
+
+    ArrayList<Map.Entry<ChunkKey, ReplicaSet>> replicas = new ArrayList<>(storage.getStoringPeers().entrySet());
+    out.writeInt(replicas.size());
+    for (Map.Entry<ChunkKey, ReplicaSet> e : replicas) {
+      int[] peers = e.getValue().toArray();
+      out.writeUTF(e.getKey().getFileId());
+      out.writeInt(e.getKey().getNr());
+      out.writeInt(peers.length);
+      for (int peerId : peers) {
+        out.writeInt(peerId);
+      }
+    }
+  }
+
+  /**
+   * Load a snapshot into the catalogue
+   *
+   * @param path snapshot
+   * @return first segment not covered by the snapshot
+   * @throws IOException if the snapshot can not be read or is corrupt
+   */
+  private long load(Path path) throws IOException {
+    CRC32 check = new CRC32();
+    try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(path.toFile()), 64 * 1024), check))) {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+        throw new IOException("Unknown metadata snapshot format");
+      }
+      long first = in.readLong();
+
+      storage.updateMax(in.readLong());
+
+      int files = in.readInt();
+      for (int i = 0; i < files; i++) {
+        String fileId = in.readUTF();
+        String filePath = in.readUTF();
+        int replicationDegree = in.readInt();
+        long size = in.readLong();
+        long backupTime = in.readLong();
+        storage.backup(new FileData(fileId, filePath, replicationDegree, size, backupTime), replicationDegree);
+      }
+
+      int chunks = in.readInt();
+      for (int i = 0; i < chunks; i++) {
+        String fileId = in.readUTF();
+        int nr = in.readInt();
+        int size = in.readInt();
+        storage.recordChunk(fileId, nr, size, in.readInt());
+      }
+
+      int replicas = in.readInt();
+      for (int i = 0; i < replicas; i++) {
+        String fileId = in.readUTF();
+        int nr = in.readInt();
+        int peers = in.readInt();
+        for (int j = 0; j < peers; j++) {
+          storage.recordStore(fileId, nr, in.readInt());
+        }
+      }
+
+      int expected = (int) check.getValue();
+      if (in.readInt() != expected) {
+        throw new IOException("Corrupt metadata snapshot");
+      }
+      return first;
+    } catch (EOFException e) {
+      throw new IOException("Truncated metadata snapshot", e);
+    }
+  }
+
+  /**
+   * Log segments in the folder, by number
+   */
+  private TreeMap<Long, Path> segments() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*")) {
+      for (Path path : stream) {
+        try {
+          segments.put(Long.parseLong(path.getFileName().toString().substring(SEGMENT_PREFIX.length())), path);
+        } catch (NumberFormatException e) {
+          // Not a segment
+        }
+      }
+    }
+    return segments;
+  }
+
+  private static String segmentName(long segment) {
+    return String.format(SEGMENT_PREFIX + "%08d", segment);
+  }
+
+  /**
+   * Force the log every SYNC_INTERVAL, and take a snapshot when it is due
+   */
+  private void run() {
+    while (true) {
+      try {
+        Thread.sleep(SYNC_INTERVAL);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      try {
+        this.sync();
+        if (this.snapshotDue()) {
+          this.snapshot();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Force the records written so far. Appends go on while the segment is forced
+   *
+   * @throws IOException if the log could not be forced
+   */
+  public void sync() throws IOException {
+    FileChannel channel;
+    synchronized (this) {
+      if (log == null) {
+        return;
+      }
+      this.drain();
+      this.flush();
+      if (!dirty) {
+        return;
+      }
+      channel = log;
+      dirty = false;
+    }
+
+    try {
+      channel.force(false);
+    } catch (ClosedChannelException e) {
+      // Rolled over meanwhile, which forced it
+    }
+  }
+
+  private synchronized boolean snapshotDue() {
+    return segmentSize >= SNAPSHOT_LOG_SIZE
+            || (segmentSize > 0 && System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "segment=" + segment + " bytes=" + segmentSize + " snapshots=" + snapshots;
+  }
+}
@@ -1,17 +1,16 @@
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 /**
  * MulticastControl
  */
 public class MulticastBackup extends MulticastChannel {
   public MulticastBackup(PeerService peer, String inet, int port) {
-    super(peer, inet,port,"Backup channel");
+    super(peer, inet, port, "Backup channel", DispatchStage.Priority.BACKUP);
   }
 
   @Override
-  protected void parseMessage(DatagramPacket packet) {
-    BackupChannelWorker worker = (BackupChannelWorker) ChannelWorkerFactory.createWorker(packet.getData(),packet.getLength()
-            ,super.peer,ChannelWorkerFactory.WorkerType.BACKUP);
-    super.executor.execute(worker);
+  public void parseMessage(ByteBuffer buffer) {
+    BackupChannelWorker worker = (BackupChannelWorker) ChannelWorkerFactory.createWorker(buffer, buffer.limit(), super.bufferPool, super.peer, ChannelWorkerFactory.WorkerType.BACKUP);
+    super.dispatch(worker);
   }
 }
@@ -1,70 +1,73 @@
-import java.io.IOException;
 import java.net.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.ByteBuffer;
 
 //TODO cleanup exceptions
 
 /**
- * The generic class for a multicast channel
+ * The generic class for a multicast channel. Datagrams are received by the
+ * peer's MulticastReceiver and handed to the channel to be dispatched
  */
-public abstract class MulticastChannel implements Runnable {
+public abstract class MulticastChannel {
+    // Sender options, can be set with -Dsdis.multicast.ttl=... and so on
+    static final int TTL = Integer.getInteger("sdis.multicast.ttl", 1);
+    static final boolean LOOPBACK = Boolean.parseBoolean(System.getProperty("sdis.multicast.loopback", "true"));
+    static final int SEND_BUFFER_SIZE = Integer.getInteger("sdis.multicast.sndbuf", 0);
+
     protected final PeerService peer;
     protected InetAddress addr;
     protected int port;
     protected String channelName;
-    protected ThreadPoolExecutor executor;
+    protected DispatchStage dispatcher;
+    protected DispatchStage.Priority priority;
+    protected BufferPool bufferPool;
+    protected MulticastSender sender;
 
-    public MulticastChannel(PeerService peer, String inet, int port, String channelName) {
+    public MulticastChannel(PeerService peer, String inet, int port, String channelName, DispatchStage.Priority priority) {
         this.peer = peer;
         try {
             this.port = port;
             this.addr = InetAddress.getByName(inet);
             this.channelName = channelName;
-            this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+            this.dispatcher = peer.dispatcher;
+            this.priority = priority;
+            this.bufferPool = peer.receiveBuffers;
+            this.sender = new MulticastSender(this.addr, this.port, TTL, LOOPBACK, SEND_BUFFER_SIZE);
         } catch (UnknownHostException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
-    @Override
-    public void run() {
-        byte[] buf = new byte[512000];
-
-        try (MulticastSocket socket = new MulticastSocket(this.port)) {
-            socket.joinGroup(this.addr);
-
-            System.out.println("Starting " + this.channelName);
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                socket.receive(packet);
-
-                this.parseMessage(packet);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    /**
+     * Hands the worker to the shared worker stage with the channel's priority.
+     * If that queue is full the datagram is dropped and its buffer released
+     * @param worker worker for a received datagram
+     */
+    protected void dispatch(ChannelWorker worker) {
+        this.dispatcher.submit(worker, this.priority);
     }
 
-    public void sendMessage(Message message) {
-        try {
-            DatagramSocket socket = new DatagramSocket();
-            DatagramPacket packet = new DatagramPacket(message.getBytes(), message.getBytes().length, this.addr, this.port);
-
-            socket.send(packet);
-            System.out.println("Sent: " + message.getHeader());
+    /**
+     * Sends the message to the channel's group
+     * @param message message to send
+     * @throws MessageSendException if it could not be sent, retryable failures may succeed if sent again
+     */
+    public void sendMessage(Message message) throws MessageSendException {
+        this.sender.send(message);
+        System.out.println("Sent: " + message.getHeader());
+    }
 
-            socket.close();
-        } catch (SocketException e) {
-            e.printStackTrace();
-            System.exit(1);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    /**
+     * Closes the sender of the channel
+     */
+    public void close() {
+        this.sender.close();
     }
 
-    abstract protected void parseMessage(DatagramPacket packet);
+    /**
+     * Hands a received datagram to a worker. The buffer is owned by the worker
+     * from this point on and must be released to the buffer pool by it
+     * @param buffer leased buffer holding the datagram
+     */
+    abstract public void parseMessage(ByteBuffer buffer);
 }
@@ -1,16 +1,16 @@
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 /**
  * MulticastControl
  */
 public class MulticastControl extends MulticastChannel {
   public MulticastControl(PeerService peer, String inet, int port) {
-    super(peer, inet, port, "Control Channel");
+    super(peer, inet, port, "Control Channel", DispatchStage.Priority.CONTROL);
   }
 
   @Override
-  protected void parseMessage(DatagramPacket packet) {
-    ControlChannelWorker worker = (ControlChannelWorker) ChannelWorkerFactory.createWorker(packet.getData(),packet.getLength(),super.peer, ChannelWorkerFactory.WorkerType.CONTROL);
-    super.executor.execute(worker);
+  public void parseMessage(ByteBuffer buffer) {
+    ControlChannelWorker worker = (ControlChannelWorker) ChannelWorkerFactory.createWorker(buffer, buffer.limit(), super.bufferPool, super.peer, ChannelWorkerFactory.WorkerType.CONTROL);
+    super.dispatch(worker);
   }
 }
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.Iterator;
+
+/**
+ * Receives the datagrams of every multicast channel of the peer in a single
+ * thread. Each group is joined with a non blocking datagram channel registered
+ * on one selector, and every received datagram is handed to its
+ * MulticastChannel, which dispatches it to the shared worker stage.
+ */
+public class MulticastReceiver implements Runnable {
+    // Datagrams read from one channel before moving on to the next ready one
+    static final int MAX_READS_PER_KEY = 16;
+    static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("sdis.multicast.rcvbuf", 0);
+    static final String INTERFACE = System.getProperty("sdis.multicast.interface");
+
+    final private MulticastChannel[] channels;
+    final private BufferPool bufferPool;
+
+    public MulticastReceiver(BufferPool bufferPool, MulticastChannel... channels) {
+        this.bufferPool = bufferPool;
+        this.channels = channels;
+    }
+
+    /**
+     * Opens a non blocking channel that has joined the group of the given
+     * multicast channel
+     */
+    private DatagramChannel open(MulticastChannel channel, NetworkInterface netIf) throws IOException {
+        DatagramChannel dc = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            // Several peers in the same host listen on the same port
+            dc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (RECEIVE_BUFFER_SIZE > 0) {
+                dc.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            }
+            dc.bind(new InetSocketAddress(channel.port));
+            dc.join(channel.addr, netIf);
+            dc.configureBlocking(false);
+        } catch (IOException e) {
+            dc.close();
+            throw e;
+        }
+
+        return dc;
+    }
+
+    /**
+     * Finds the interface used to join the groups: the one named by
+     * sdis.multicast.interface, else the first multicast capable interface that
+     * is up, preferring a non loopback one
+     */
+    static NetworkInterface findInterface() throws SocketException {
+        if (INTERFACE != null) {
+            NetworkInterface netIf = NetworkInterface.getByName(INTERFACE);
+            if (netIf == null) {
+                throw new SocketException("No interface named " + INTERFACE);
+            }
+            return netIf;
+        }
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface netIf = interfaces.nextElement();
+            if (!netIf.isUp() || !netIf.supportsMulticast()) {
+                continue;
+            }
+
+            if (!netIf.isLoopback()) {
+                return netIf;
+            }
+            if (loopback == null) {
+                loopback = netIf;
+            }
+        }
+
+        if (loopback == null) {
+            throw new SocketException("No multicast interface available");
+        }
+        return loopback;
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            NetworkInterface netIf = findInterface();
+
+            for (MulticastChannel channel : this.channels) {
+                DatagramChannel dc = this.open(channel, netIf);
+                dc.register(selector, SelectionKey.OP_READ, channel);
+                System.out.println("Starting " + channel.channelName);
+            }
+
+            while (true) {
+                selector.select();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        this.receive((DatagramChannel) key.channel(), (MulticastChannel) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the pending datagrams of a channel, each one into its own leased
+     * buffer, and hands them to the multicast channel
+     */
+    private void receive(DatagramChannel dc, MulticastChannel channel) throws IOException {
+        for (int i = 0; i < MAX_READS_PER_KEY; i++) {
+            ByteBuffer buf = this.bufferPool.lease();
+
+            try {
+                if (dc.receive(buf) == null) {
+                    this.bufferPool.release(buf);
+                    return;
+                }
+            } catch (IOException e) {
+                this.bufferPool.release(buf);
+                throw e;
+            }
+
+            buf.flip();
+            channel.parseMessage(buf);
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+}
@@ -1,4 +1,4 @@
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 /**
  * MulticastRestore
@@ -6,12 +6,12 @@ import java.net.DatagramPacket;
 public class MulticastRestore extends MulticastChannel {
 
   public MulticastRestore(PeerService peer, String inet, int port) {
-    super(peer, inet, port, "Restore Channel");
+    super(peer, inet, port, "Restore Channel", DispatchStage.Priority.RESTORE);
   }
 
   @Override
-  protected void parseMessage(DatagramPacket packet) {
-    RestoreChannelWorker worker = (RestoreChannelWorker) ChannelWorkerFactory.createWorker(packet.getData(),packet.getLength(), super.peer, ChannelWorkerFactory.WorkerType.RESTORE);
-    super.executor.execute(worker);
+  public void parseMessage(ByteBuffer buffer) {
+    RestoreChannelWorker worker = (RestoreChannelWorker) ChannelWorkerFactory.createWorker(buffer, buffer.limit(), super.bufferPool, super.peer, ChannelWorkerFactory.WorkerType.RESTORE);
+    super.dispatch(worker);
   }
 }
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Long lived sender for a multicast group. The channel is opened once and
+ * shared by every thread that sends to the group, writes on a datagram
+ * channel are already serialized by the channel itself.
+ */
+public class MulticastSender {
+    final private InetSocketAddress group;
+    final private int ttl;
+    final private boolean loopback;
+    final private int sendBufferSize;
+
+    private volatile DatagramChannel channel;
+    private volatile boolean closed;
+
+    /**
+     * @param addr           multicast group address
+     * @param port           multicast group port
+     * @param ttl            time to live of the sent datagrams
+     * @param loopback       true if the datagrams are delivered to this host too
+     * @param sendBufferSize socket send buffer size, 0 to keep the system default
+     */
+    public MulticastSender(InetAddress addr, int port, int ttl, boolean loopback, int sendBufferSize) {
+        this.group = new InetSocketAddress(addr, port);
+        this.ttl = ttl;
+        this.loopback = loopback;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Returns the open channel, opening a new one the first time or if the
+     * previous one was closed (e.g. by an interrupted sender)
+     */
+    private DatagramChannel getChannel() throws IOException {
+        DatagramChannel ch = this.channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+
+        synchronized (this) {
+            if (this.channel == null || !this.channel.isOpen()) {
+                ch = DatagramChannel.open();
+                try {
+                    ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, this.ttl);
+                    ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, this.loopback);
+                    if (this.sendBufferSize > 0) {
+                        ch.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+                    }
+                    ch.connect(this.group);
+                } catch (IOException e) {
+                    ch.close();
+                    throw e;
+                }
+                this.channel = ch;
+            }
+            return this.channel;
+        }
+    }
+
+    /**
+     * Sends the message as a single datagram, header and body are gathered
+     * from their own buffers
+     * @param message message to send
+     * @throws MessageSendException if the message was not sent
+     */
+    public void send(Message message) throws MessageSendException {
+        if (this.closed) {
+            throw new MessageSendException("Sender closed", false);
+        }
+
+        if (message.getLength() > BufferPool.MAX_DATAGRAM_SIZE) {
+            throw new MessageSendException("Message too large", false);
+        }
+
+        try {
+            this.getChannel().write(message.getBuffers());
+        } catch (ClosedChannelException e) {
+            // Closed under us, the next send opens a new channel
+            throw new MessageSendException("Channel closed", !this.closed, e);
+        } catch (IOException e) {
+            throw new MessageSendException(e.getMessage(), true, e);
+        }
+    }
+
+    /**
+     * Closes the channel, further sends fail
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,771 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured store of the chunk contents. Chunks are appended to a few
+ * large pack files instead of having one file each, and an in-memory index
+ * maps every chunk to the pack and offset of its last record.
+ * Each record is
+ *   magic (4) | type (1) | file id (64) | chunk number (4) | length (4) | crc (4) | payload
+ * A removed chunk gets a tombstone record, whose payload is the number of the
+ * pack holding the removed record, and the space it used is counted as dead.
+ * A tombstone only cancels a record of its chunk in that pack, so one that
+ * was copied by a compaction does not cancel a later store of the chunk.
+ * A background thread copies the live records of the packs that are mostly
+ * dead to the active pack and deletes them.
+ * Appends are made durable by a commit thread that forces the active pack
+ * once for all the appends done while it was forcing the previous ones
+ * (group commit), so concurrent stores share their fsyncs.
+ * The index is rebuilt by scanning the packs, in parallel, when the store is
+ * opened.
+ */
+public class PackStore {
+  // Packs are rolled over once they reach this size, can be set with -Dsdis.pack.size=<bytes>
+  final static long PACK_SIZE = Long.getLong("sdis.pack.size", 256L * 1024 * 1024);
+  // A pack is compacted once this fraction of it is dead
+  final static double COMPACT_RATIO = 0.5;
+  final static long COMPACT_INTERVAL = Long.getLong("sdis.pack.compact.interval", 10000);
+  // Threads that scan the packs when the store is opened, can be set with -Dsdis.scan.threads=<n>
+  final static int SCAN_THREADS = Integer.getInteger("sdis.scan.threads", Runtime.getRuntime().availableProcessors());
+
+  final static int MAGIC = 0x53444953;
+  final static byte PUT = 1;
+  final static byte TOMBSTONE = 2;
+  final static int FILE_ID_SIZE = 64;
+  final static int HEADER_SIZE = 4 + 1 + FILE_ID_SIZE + 4 + 4 + 4;
+
+  /**
+   * A pack file. Its size and dead bytes are guarded by the store
+   */
+  private static class Pack {
+    final int seq;
+    final Path path;
+    final FileChannel channel;
+    long size;
+    long dead;
+
+    Pack(int seq, Path path) throws IOException {
+      this.seq = seq;
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      this.size = channel.size();
+    }
+  }
+
+  /**
+   * Where the last record of a chunk is. Compared by identity
+   */
+  private static class Location {
+    final Pack pack;
+    final long offset;
+    final int length;
+
+    Location(Pack pack, long offset, int length) {
+      this.pack = pack;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    long payloadOffset() {
+      return offset + HEADER_SIZE;
+    }
+
+    long recordSize() {
+      return HEADER_SIZE + length;
+    }
+  }
+
+  final private Path dir;
+  final private ConcurrentHashMap<ChunkKey, Location> index;
+  // Guarded by this, as is every append
+  final private TreeMap<Integer, Pack> packs;
+  final private ByteBuffer header;
+  final private CRC32 crc;
+  private Pack active;
+
+  // Number of appends, and number of them known to be on disk
+  private volatile long appended;
+  final private Object syncLock;
+  private long synced;
+  private IOException syncFailure;
+
+  private long compactions;
+
+  /**
+   * Open the store in the given folder, rebuilding its index
+   *
+   * @param dir folder of the packs, created if missing
+   * @throws IOException if a pack can not be read
+   */
+  public PackStore(Path dir) throws IOException {
+    this.dir = dir;
+    this.index = new ConcurrentHashMap<>();
+    this.packs = new TreeMap<>();
+    this.header = ByteBuffer.allocate(HEADER_SIZE);
+    this.crc = new CRC32();
+    this.syncLock = new Object();
+
+    Files.createDirectories(dir);
+    this.rebuild();
+
+    Thread committer = new Thread(this::commit, "pack-commit");
+    committer.setDaemon(true);
+    committer.start();
+
+    Thread compactor = new Thread(this::compact, "pack-compactor");
+    compactor.setDaemon(true);
+    compactor.start();
+  }
+
+  /**
+   * Append a chunk and wait until it is on disk
+   *
+   * @param key     chunk key
+   * @param payload chunk content, from its position to its limit, which is not consumed
+   * @throws IOException if the chunk could not be written or made durable
+   */
+  public void put(ChunkKey key, ByteBuffer payload) throws IOException {
+    long seq;
+    synchronized (this) {
+      Location location = this.append(PUT, key, payload.duplicate());
+      this.kill(index.put(key, location));
+      seq = appended;
+    }
+    this.awaitSync(seq);
+  }
+
+  /**
+   * Remove a chunk. The tombstone is made durable by the next commit, which
+   * is not waited for
+   *
+   * @param key chunk key
+   * @throws IOException if the tombstone could not be written
+   */
+  public void delete(ChunkKey key) throws IOException {
+    synchronized (this) {
+      this.tombstone(key);
+    }
+
+    synchronized (syncLock) {
+      syncLock.notifyAll();
+    }
+  }
+
+  /**
+   * Remove a batch of chunks, in one append and one commit, which is waited for
+   *
+   * @param keys chunk keys
+   * @throws IOException if the tombstones could not be written or made durable
+   */
+  public void delete(Collection<ChunkKey> keys) throws IOException {
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    long seq;
+    synchronized (this) {
+      for (ChunkKey key : keys) {
+        this.tombstone(key);
+      }
+      seq = appended;
+    }
+    this.awaitSync(seq);
+  }
+
+  /**
+   * Append the tombstone of a chunk. Must be called holding the store lock
+   */
+  private void tombstone(ChunkKey key) throws IOException {
+    Location location = index.get(key);
+    if (location == null) {
+      return;
+    }
+
+    ByteBuffer target = ByteBuffer.allocate(4).putInt(0, location.pack.seq);
+    Location tombstone = this.append(TOMBSTONE, key, target);
+    tombstone.pack.dead += tombstone.recordSize();
+
+    index.remove(key);
+    this.kill(location);
+  }
+
+  /**
+   * Test if a chunk is stored
+   *
+   * @param key chunk key
+   * @return true if it is stored
+   */
+  public boolean contains(ChunkKey key) {
+    return index.containsKey(key);
+  }
+
+  /**
+   * Copy a chunk into dst
+   *
+   * @param key chunk key
+   * @param dst buffer with room for the chunk, filled from its position
+   * @return false if the chunk is not stored
+   * @throws IOException if the chunk could not be read
+   */
+  public boolean read(ChunkKey key, ByteBuffer dst) throws IOException {
+    Location location;
+
+    while ((location = index.get(key)) != null) {
+      ByteBuffer buffer = dst.duplicate();
+      buffer.limit(buffer.position() + location.length);
+      try {
+        long position = location.payloadOffset();
+        while (buffer.hasRemaining()) {
+          int n = location.pack.channel.read(buffer, position);
+          if (n < 0) {
+            throw new IOException("Truncated pack " + location.pack.path);
+          }
+          position += n;
+        }
+      } catch (ClosedChannelException e) {
+        // The pack was compacted meanwhile, try the new location
+        if (index.get(key) == location) {
+          throw e;
+        }
+        continue;
+      }
+
+      dst.position(buffer.position());
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Map a chunk. The mapping stays valid after the pack is compacted
+   *
+   * @param key chunk key
+   * @return read-only content of the chunk, or null if it is not stored
+   * @throws IOException if the chunk could not be mapped
+   */
+  public MappedByteBuffer map(ChunkKey key) throws IOException {
+    Location location;
+
+    while ((location = index.get(key)) != null) {
+      try {
+        return location.pack.channel.map(FileChannel.MapMode.READ_ONLY, location.payloadOffset(), location.length);
+      } catch (ClosedChannelException e) {
+        if (index.get(key) == location) {
+          throw e;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Send a chunk to a channel straight from its pack, with transferTo, so
+   * the content is not copied through the heap
+   *
+   * @param key    chunk key
+   * @param prefix bytes written before the chunk, once it is found with the
+   *               expected length
+   * @param length expected length of the chunk
+   * @param target channel the chunk is written to
+   * @return false, before anything is written, if the chunk is not stored or
+   *         has another length
+   * @throws IOException if the chunk could not be sent, part of it may have been
+   */
+  public boolean transfer(ChunkKey key, ByteBuffer prefix, int length, WritableByteChannel target)
+          throws IOException {
+    Location location;
+    boolean started = false;
+    long sent = 0;
+
+    while ((location = index.get(key)) != null) {
+      if (location.length != length) {
+        if (started) {
+          throw new IOException("Chunk " + key + " changed while it was sent");
+        }
+        return false;
+      }
+
+      started = true;
+      while (prefix.hasRemaining()) {
+        target.write(prefix);
+      }
+
+      try {
+        while (sent < length) {
+          long position = location.payloadOffset() + sent;
+          long n = location.pack.channel.transferTo(position, length - sent, target);
+          if (n == 0 && position >= location.pack.channel.size()) {
+            throw new IOException("Truncated pack " + location.pack.path);
+          }
+          sent += n;
+        }
+        return true;
+      } catch (ClosedChannelException e) {
+        // The pack was compacted meanwhile, the rest is sent from the new location
+        if (index.get(key) == location || !target.isOpen()) {
+          throw e;
+        }
+      }
+    }
+
+    if (started) {
+      throw new IOException("Chunk " + key + " removed while it was sent");
+    }
+    return false;
+  }
+
+  /**
+   * Wait until everything appended so far is on disk
+   *
+   * @throws IOException if the packs could not be forced
+   */
+  public void sync() throws IOException {
+    this.awaitSync(appended);
+  }
+
+  /**
+   * Append a record to the active pack, rolling it over if it is full.
+   * Must be called holding the store lock
+   */
+  private Location append(byte type, ChunkKey key, ByteBuffer payload) throws IOException {
+    byte[] id = key.getFileId().getBytes(StandardCharsets.US_ASCII);
+    // Received file ids are checked when the message is parsed, see MessageView
+    assert id.length == FILE_ID_SIZE : "Invalid file id " + key.getFileId();
+
+    int length = payload.remaining();
+    if (active == null || (active.size > 0 && active.size + HEADER_SIZE + length > PACK_SIZE)) {
+      this.rollOver();
+    }
+
+    crc.reset();
+    crc.update(payload.duplicate());
+    header.clear();
+    header.putInt(MAGIC).put(type).put(id).putInt(key.nr).putInt(length).putInt((int) crc.getValue());
+    header.flip();
+
+    Location location = new Location(active, active.size, length);
+    ByteBuffer[] record = {header, payload};
+    active.channel.position(active.size);
+    while (payload.hasRemaining() || header.hasRemaining()) {
+      active.channel.write(record);
+    }
+    active.size += location.recordSize();
+    appended++;
+
+    return location;
+  }
+
+  /**
+   * Count the record as dead in its pack
+   */
+  private void kill(Location location) {
+    if (location != null) {
+      location.pack.dead += location.recordSize();
+    }
+  }
+
+  /**
+   * Start a new active pack. The previous one is forced first, the commit
+   * thread only forces the active pack
+   */
+  private void rollOver() throws IOException {
+    int seq = 0;
+    if (active != null) {
+      active.channel.force(false);
+      seq = active.seq + 1;
+    } else if (!packs.isEmpty()) {
+      seq = packs.lastKey() + 1;
+    }
+
+    active = new Pack(seq, dir.resolve(String.format("pack-%08d.dat", seq)));
+    packs.put(seq, active);
+  }
+
+  private void awaitSync(long seq) throws IOException {
+    synchronized (syncLock) {
+      syncLock.notifyAll();
+      while (synced < seq && syncFailure == null) {
+        try {
+          syncLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the commit", e);
+        }
+      }
+      if (syncFailure != null) {
+        throw syncFailure;
+      }
+    }
+  }
+
+  /**
+   * Commit thread. A failed force is not retried: the writes it covered may
+   * be lost, so every later wait fails
+   */
+  private void commit() {
+    while (true) {
+      synchronized (syncLock) {
+        while (synced >= appended) {
+          try {
+            syncLock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+
+      long target;
+      Pack pack;
+      synchronized (this) {
+        target = appended;
+        pack = active;
+      }
+
+      IOException failure = null;
+      try {
+        pack.channel.force(false);
+      } catch (IOException e) {
+        e.printStackTrace();
+        failure = e;
+      }
+
+      synchronized (syncLock) {
+        synced = target;
+        if (failure != null) {
+          syncFailure = failure;
+        }
+        syncLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Compaction thread
+   */
+  private void compact() {
+    while (true) {
+      try {
+        Thread.sleep(COMPACT_INTERVAL);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      ArrayList<Pack> candidates = new ArrayList<>();
+      synchronized (this) {
+        for (Pack pack : packs.values()) {
+          if (pack != active && pack.dead >= pack.size * COMPACT_RATIO) {
+            candidates.add(pack);
+          }
+        }
+      }
+
+      for (Pack pack : candidates) {
+        try {
+          this.compact(pack);
+        } catch (IOException e) {
+          System.out.println("Failed compacting " + pack.path);
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Copy the live records of a pack to the active one and delete it
+   *
+   * @param pack pack to compact
+   */
+  private void compact(Pack pack) throws IOException {
+    ByteBuffer recordHeader = ByteBuffer.allocate(HEADER_SIZE);
+    ByteBuffer payload = ByteBuffer.allocateDirect(FileData.MAX_CHUNK_SIZE);
+    byte[] id = new byte[FILE_ID_SIZE];
+    long offset = 0;
+
+    while (offset < pack.size) {
+      recordHeader.clear();
+      if (!readFully(pack.channel, recordHeader, offset)) {
+        throw new IOException("Truncated pack " + pack.path);
+      }
+      recordHeader.flip();
+      recordHeader.getInt();
+      byte type = recordHeader.get();
+      recordHeader.get(id);
+      int nr = recordHeader.getInt();
+      int length = recordHeader.getInt();
+      ChunkKey key = ChunkKey.of(new String(id, StandardCharsets.US_ASCII), nr);
+
+      payload.clear().limit(length);
+      if (!readFully(pack.channel, payload, offset + HEADER_SIZE)) {
+        throw new IOException("Truncated pack " + pack.path);
+      }
+      payload.flip();
+
+      synchronized (this) {
+        if (type == PUT) {
+          // Only the record the index points to is live
+          Location location = index.get(key);
+          if (location != null && location.pack == pack && location.offset == offset) {
+            index.put(key, this.append(PUT, key, payload));
+          }
+        } else if (packs.containsKey(payload.getInt(0)) && payload.getInt(0) != pack.seq
+                && !index.containsKey(key)) {
+          // The removed record still exists, so must its tombstone, unless the
+          // chunk was stored again: the copy would land after the new record
+          Location tombstone = this.append(TOMBSTONE, key, payload);
+          tombstone.pack.dead += tombstone.recordSize();
+        }
+      }
+
+      offset += HEADER_SIZE + length;
+    }
+
+    // The copies must be on disk before the originals go away
+    this.sync();
+
+    synchronized (this) {
+      packs.remove(pack.seq);
+      compactions++;
+    }
+    pack.channel.close();
+    Files.delete(pack.path);
+  }
+
+  /**
+   * Rebuild the index from the packs. The packs are scanned in parallel, each
+   * by a fork/join task that lists its records, and the lists are then applied
+   * to the index oldest pack first, so the last record of a chunk wins.
+   * A record that is cut short or fails its checksum can only be the tail of
+   * an interrupted append, so the last pack is truncated there
+   */
+  private void rebuild() throws IOException {
+    File[] files = dir.toFile().listFiles((d, name) -> name.matches("pack-\\d{8}\\.dat"));
+    if (files == null || files.length == 0) {
+      return;
+    }
+
+    for (File file : files) {
+      Pack pack = new Pack(Integer.parseInt(file.getName().substring(5, 13)), file.toPath());
+      packs.put(pack.seq, pack);
+    }
+
+    Pack[] ordered = packs.values().toArray(new Pack[0]);
+    List<Record> records;
+    ForkJoinPool pool = new ForkJoinPool(Math.min(SCAN_THREADS, ordered.length));
+    try {
+      records = pool.invoke(new ScanTask(ordered, 0, ordered.length));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+
+    for (Record record : records) {
+      if (record.put) {
+        this.kill(index.put(record.key, record.location));
+      } else {
+        // A tombstone only cancels a record in the pack it names
+        Location location = index.get(record.key);
+        if (location != null && location.pack.seq == record.target) {
+          index.remove(record.key);
+          this.kill(location);
+        }
+        this.kill(record.location);
+      }
+    }
+
+    active = packs.lastEntry().getValue();
+  }
+
+  /**
+   * A record found by a scan
+   */
+  private static class Record {
+    final ChunkKey key;
+    final Location location;
+    final boolean put;
+    // Pack of the removed record, for a tombstone
+    final int target;
+
+    Record(ChunkKey key, Location location, boolean put, int target) {
+      this.key = key;
+      this.location = location;
+      this.put = put;
+      this.target = target;
+    }
+  }
+
+  /**
+   * Scan of a range of packs, split until there is one pack per task. The
+   * records are returned in the order of the packs
+   */
+  private class ScanTask extends RecursiveTask<List<Record>> {
+    private static final long serialVersionUID = 1L;
+
+    final Pack[] ordered;
+    final int from;
+    final int to;
+
+    ScanTask(Pack[] ordered, int from, int to) {
+      this.ordered = ordered;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected List<Record> compute() {
+      if (to - from == 1) {
+        try {
+          return scan(ordered[from], to == ordered.length);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      int middle = (from + to) >>> 1;
+      ScanTask older = new ScanTask(ordered, from, middle);
+      older.fork();
+      List<Record> newer = new ScanTask(ordered, middle, to).compute();
+      List<Record> records = older.join();
+      records.addAll(newer);
+      return records;
+    }
+  }
+
+  /**
+   * List the records of a pack
+   *
+   * @param pack pack to scan
+   * @param last whether it is the last pack, whose payloads are checked
+   * @return records, in the order they were appended
+   */
+  private List<Record> scan(Pack pack, boolean last) throws IOException {
+    ByteBuffer recordHeader = ByteBuffer.allocate(HEADER_SIZE);
+    ByteBuffer payload = ByteBuffer.allocate(FileData.MAX_CHUNK_SIZE);
+    CRC32 check = new CRC32();
+    byte[] id = new byte[FILE_ID_SIZE];
+    ArrayList<Record> records = new ArrayList<>();
+    long offset = 0;
+
+    while (offset < pack.size) {
+      recordHeader.clear();
+      if (!readFully(pack.channel, recordHeader, offset)) {
+        break;
+      }
+      recordHeader.flip();
+      if (recordHeader.getInt() != MAGIC) {
+        break;
+      }
+      byte type = recordHeader.get();
+      recordHeader.get(id);
+      int nr = recordHeader.getInt();
+      int length = recordHeader.getInt();
+      int checksum = recordHeader.getInt();
+      if (length < 0 || length > payload.capacity()) {
+        break;
+      }
+
+      // Only the tail of the last pack can be torn, the payloads of the others are not read
+      if (last || type == TOMBSTONE) {
+        payload.clear().limit(length);
+        if (!readFully(pack.channel, payload, offset + HEADER_SIZE)) {
+          break;
+        }
+        payload.flip();
+        check.reset();
+        check.update(payload.duplicate());
+        if ((int) check.getValue() != checksum) {
+          break;
+        }
+      }
+
+      ChunkKey key = ChunkKey.of(new String(id, StandardCharsets.US_ASCII), nr);
+      Location location = new Location(pack, offset, length);
+      int target = type == TOMBSTONE && length >= 4 ? payload.getInt(0) : -1;
+      records.add(new Record(key, location, type == PUT, target));
+      offset += location.recordSize();
+    }
+
+    if (offset < pack.size) {
+      System.out.println("Discarding " + (pack.size - offset) + " bytes at the end of " + pack.path);
+      if (last) {
+        pack.channel.truncate(offset);
+      }
+      pack.size = offset;
+    }
+    return records;
+  }
+
+  /**
+   * Read from position until dst is full
+   *
+   * @return false if the end of the channel was reached first
+   */
+  private static boolean readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, position);
+      if (n < 0) {
+        return false;
+      }
+      position += n;
+    }
+    return true;
+  }
+
+  /**
+   * Size of a chunk
+   *
+   * @param key chunk key
+   * @return length of its content, or -1 if it is not in the store
+   */
+  public int length(ChunkKey key) {
+    Location location = index.get(key);
+    return location == null ? -1 : location.length;
+  }
+
+  /**
+   * Keys of the chunks in the store, a live view
+   *
+   * @return chunk keys
+   */
+  public Set<ChunkKey> keys() {
+    return index.keySet();
+  }
+
+  public int getChunkCount() {
+    return index.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    long size = 0;
+    long dead = 0;
+    for (Pack pack : packs.values()) {
+      size += pack.size;
+      dead += pack.dead;
+    }
+    return packs.size() + " packs, " + size + " bytes, " + dead + " dead, " + compactions + " compactions";
+  }
+}
@@ -24,7 +24,22 @@ public interface PeerInterface extends Remote {
     String restore(String filePath) throws RemoteException;
 
     /**
-     * Delete all chunks of a file backed up.
+     * Restore a version of a file backed up in the other peers.
+     *
+     * @param filePath file path
+     * @param version  version number, as listed by versions
+     */
+    String restore(String filePath, int version) throws RemoteException;
+
+    /**
+     * List the backed up versions of a file.
+     *
+     * @param filePath file path
+     */
+    String versions(String filePath) throws RemoteException;
+
+    /**
+     * Delete all chunks of the latest version of a file backed up.
      *
      * @param filePath file path
      */
@@ -44,7 +59,8 @@ public interface PeerInterface extends Remote {
     String state() throws RemoteException;
 
     /**
-     * Serialize storage
+     * Write a snapshot of the storage catalogue, which is otherwise
+     * recovered from the metadata log
      */
     String serialize() throws RemoteException;
 }
@@ -1,65 +1,135 @@
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The peer service is responsible for providing the interface to the test
  * application
  */
 public class PeerService implements PeerInterface {
-    final static ScheduledThreadPoolExecutor executer = new ScheduledThreadPoolExecutor(200);
+    // Drives every delayed task of the peer: back-offs, PUTCHUNK repetitions and restores
+    final static TimerWheel timer = new TimerWheel(10, TimeUnit.MILLISECONDS, 512,
+            Integer.getInteger("sdis.timer.threads", 4));
+
+    // Shared worker stage and receive buffers, can be set with -Dsdis.workers=... and so on
+    final static int WORKERS = Integer.getInteger("sdis.workers", 16);
+    final static int CONTROL_QUEUE = Integer.getInteger("sdis.workers.queue.control", 128);
+    final static int RESTORE_QUEUE = Integer.getInteger("sdis.workers.queue.restore", 64);
+    final static int BACKUP_QUEUE = Integer.getInteger("sdis.workers.queue.backup", 48);
+    // Enough for every queued and running worker plus the one being received
+    final static int RECEIVE_BUFFERS = Integer.getInteger("sdis.receive.buffers",
+            WORKERS + CONTROL_QUEUE + RESTORE_QUEUE + BACKUP_QUEUE + 1);
+    final static long RECEIVE_BUFFER_WAIT = 100;
+    // Buffers the stored chunks are read into before being sent, one per worker
+    final static int CHUNK_BUFFERS = Integer.getInteger("sdis.chunk.buffers", WORKERS);
+    // Upper bound of the protocol's random back-off, in milliseconds
+    final static int MAX_DELAY = 400;
+    // Version of the protocol as specified, peers running it get the CHUNKs by multicast
+    final static String BASE_VERSION = "1.0";
 
     final int peerId;
     final String version;
+    final DispatchStage dispatcher;
+    final BufferPool receiveBuffers;
+    final BufferPool chunkBuffers;
     final MulticastControl mcControl;
     final MulticastBackup mcBackup;
     final MulticastRestore mcRestore;
+    final MulticastReceiver receiver;
     final LocalStorage storage;
-
-    Thread mcBackupThread;
-    Thread mcControlThread;
-    Thread mcRestoreThread;
+    // CHUNKs over TCP, used when this peer and the other one run an enhanced version
+    final ChunkReceiver chunkReceiver;
+    final ChunkSender chunkSender;
+    // CHUNKs multicast by the other peers lately, so this one does not send them again
+    final RecentChunkFilter recentChunks;
+    final AtomicLong suppressedChunks;
+    // Pending PUTCHUNK repetitions, by chunk
+    final ConcurrentHashMap<ChunkKey, PutchunkRepeater> repeaters;
+    // Backups started by this peer, by file id
+    final ConcurrentHashMap<String, BackupPipeline> backups;
+    // Restores started by this peer, by file id
+    final ConcurrentHashMap<String, RestoreTask> restores;
+
+    Thread receiverThread;
 
     public PeerService(int peerId, String version, String control_addr, int control_port, String backup_addr,
             int backup_port, String restore_addr, int restore_port) {
         this.peerId = peerId;
         this.version = version;
+        this.dispatcher = new DispatchStage(WORKERS, CONTROL_QUEUE, RESTORE_QUEUE, BACKUP_QUEUE);
+        this.receiveBuffers = new BufferPool(RECEIVE_BUFFERS, BufferPool.MAX_DATAGRAM_SIZE, true, RECEIVE_BUFFER_WAIT);
+        this.chunkBuffers = new BufferPool(CHUNK_BUFFERS, FileData.MAX_CHUNK_SIZE, true, RECEIVE_BUFFER_WAIT);
+
         this.mcControl = new MulticastControl(this, control_addr, control_port);
         this.mcBackup = new MulticastBackup(this, backup_addr, backup_port);
         this.mcRestore = new MulticastRestore(this, restore_addr, restore_port);
+        this.receiver = new MulticastReceiver(receiveBuffers, mcControl, mcBackup, mcRestore);
 
-        this.storage = LocalStorage.deserialize(this);
+        this.storage = new LocalStorage(this);
+        this.chunkReceiver = new ChunkReceiver(this);
+        this.chunkSender = new ChunkSender(storage);
+        this.recentChunks = new RecentChunkFilter(2 * MAX_DELAY, 16);
+        this.suppressedChunks = new AtomicLong();
+        this.repeaters = new ConcurrentHashMap<>();
+        this.backups = new ConcurrentHashMap<>();
+        this.restores = new ConcurrentHashMap<>();
 
         // Create threads
-        this.mcBackupThread = new Thread(mcBackup);
-        this.mcControlThread = new Thread(mcControl);
-        this.mcRestoreThread = new Thread(mcRestore);
+        this.receiverThread = new Thread(receiver, "multicast-receiver");
     }
 
     /**
      * Starts the service
      */
     public void start() {
-        this.mcBackupThread.start();
-        this.mcControlThread.start();
-        this.mcRestoreThread.start();
+        this.dispatcher.start();
+        this.receiverThread.start();
+
+        if (this.isEnhanced()) {
+            try {
+                chunkReceiver.start();
+            } catch (IOException e) {
+                // The GETCHUNKs go without endpoint and the CHUNKs are multicast
+                e.printStackTrace();
+                System.out.println("Could not listen for chunks, restores use the restore channel");
+            }
+        }
+    }
+
+    /**
+     * Whether this peer runs a version with the enhancements
+     */
+    boolean isEnhanced() {
+        return !BASE_VERSION.equals(version);
     }
 
     @Override
     public String backup(String path, int repDegree) {
         FileData fd = new FileData(path, repDegree);
-        storage.backup(fd,repDegree);
-        for (ChunkData chunk : fd.chunks) {
-            Message message = new Message(version, "PUTCHUNK", Integer.toString(peerId), fd.id, Integer.toString(chunk.nr), Integer.toString(fd.replicationDegree), chunk.chunk);
-            mcBackup.sendMessage(message);
-            System.out.println("System sent PUTCHUNK message.");
-            executer.schedule(new PutchunkRepeater(storage, mcBackup, message, 1, fd.id, chunk.nr, repDegree, 4), 1, TimeUnit.SECONDS);
+        ChunkSource source;
+        try {
+            source = fd.openChunks();
+        } catch (IOException e) {
+            return "File not found";
         }
 
-        return "File backed up";
+        storage.backup(fd,repDegree);
+
+        // The chunks are sent in the background, as fast as the peers store them
+        BackupPipeline pipeline = new BackupPipeline(this, fd, source);
+        backups.put(fd.id, pipeline);
+        pipeline.start();
+
+        return "Backing up file...";
 
         /**
          * TODO enhancement
@@ -72,48 +142,129 @@ public class PeerService implements PeerInterface {
          */
     }
 
+    /**
+     * Send the PUTCHUNK of a chunk of a file backed up by this peer and
+     * schedule its repetitions
+     *
+     * @param fd       file being backed up
+     * @param nr       chunk number
+     * @param body     chunk content
+     * @param listener told about the repetitions of the chunk
+     */
+    void sendPutchunk(FileData fd, int nr, ByteBuffer body, PutchunkRepeater.Listener listener) {
+        Message message = new Message(version, "PUTCHUNK", Integer.toString(peerId), fd.id, Integer.toString(nr), Integer.toString(fd.replicationDegree), body);
+        try {
+            mcBackup.sendMessage(message);
+            System.out.println("System sent PUTCHUNK message.");
+        } catch (MessageSendException e) {
+            // The repeater sends it again
+            e.printInfo();
+        }
+        startRepeater(new PutchunkRepeater(this, message, 1, fd.id, nr, fd.replicationDegree, 4, listener));
+    }
+
     @Override
     public String restore(String filePath) {
-        //Discover the fileId
-        String fileId = storage.getFileId(filePath);
+        return restore(filePath, 0);
+    }
+
+    @Override
+    public String restore(String filePath, int fileVersion) {
+        //Discover the fileId, 0 is the latest version
+        String fileId = storage.getFileId(filePath, fileVersion);
 
         if (fileId == null) {
-            return "File not found";
+            return fileVersion == 0 ? "File not found" : "Version not found";
         }
 
-        //Restore the file
         FileData fd = storage.getFile(fileId);
-        storage.restore(fileId);
-        HashSet<ChunkData> set = new HashSet<>(fd.chunks);
-
-        if (fd != null) {
-            for (ChunkData chunk : set) {
-                Message message = new Message(version, "GETCHUNK", Integer.toString(peerId), fd.id, Integer.toString(chunk.nr), null);
-                mcControl.sendMessage(message);
-                System.out.println("System sent GETCHUNK message." + chunk.fileId + "_" + chunk.nr + "," + chunk.size);
-            }
-            executer.schedule(new FileBuilder(storage, fileId, fd.file.getPath(), fd.chunks.size()), 10, TimeUnit.SECONDS);
+        if (fd == null) {
+            return "File not found";
+        }
+
+        //Restore the file, the chunks are written as they arrive
+        RestoreTask task = new RestoreTask(this, fd);
+        if (restores.compute(fileId, (id, previous) -> previous != null && !previous.isOver() ? previous : task) != task) {
+            return "File is already being restored";
+        }
+        try {
+            task.start();
+        } catch (IOException e) {
+            restores.remove(fileId);
+            e.printStackTrace();
+            return "Could not write the restored file";
         }
 
         return "Restoring file...";
     }
 
+    /**
+     * Send the GETCHUNK of a chunk of a file being restored. An enhanced peer
+     * puts the endpoint of its chunk receiver in the body, peers of the base
+     * version ignore it and multicast the CHUNK
+     *
+     * @param fileId file id
+     * @param nr     chunk number
+     */
+    void sendGetchunk(String fileId, int nr) {
+        String endpoint = chunkReceiver.getEndpoint();
+        byte[] body = endpoint == null ? null : endpoint.getBytes(StandardCharsets.US_ASCII);
+        Message message = new Message(version, "GETCHUNK", Integer.toString(peerId), fileId, Integer.toString(nr), null, body);
+        try {
+            mcControl.sendMessage(message);
+            System.out.println("System sent GETCHUNK message." + fileId + "_" + nr);
+        } catch (MessageSendException e) {
+            // Asked for again by the restore
+            e.printInfo();
+        }
+    }
+
+
+    @Override
+    public String versions(String filePath) {
+        List<FileData> list = storage.getVersions(filePath);
+        if (list.isEmpty()) {
+            return "File not found";
+        }
+
+        StringBuilder builder = new StringBuilder();
+        int fileVersion = 1;
+        for (FileData fd : list) {
+            builder.append("Version ").append(fileVersion++).append(":\t").append(fd.id)
+                    .append("\t").append(fd.size).append(" bytes\tbacked up ")
+                    .append(new Date(fd.backupTime)).append("\n");
+        }
+        return builder.toString();
+    }
+
     @Override
     public String delete(String filePath) {
-        //Discover the fileId
+        //Discover the fileId of the latest version
         String fileId = storage.getFileId(filePath);
 
         if (fileId == null) {
             return "File not found";
         }
 
+        // Stop backing it up, so the peers do not store it again after the DELETE
+        BackupPipeline pipeline = backups.remove(fileId);
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+
         //Delete the file
         Message message = new Message(version, "DELETE", Integer.toString(peerId), fileId, null, null);
-        mcControl.sendMessage(message);
-        System.out.println("System sent DELETE message.");
+        try {
+            mcControl.sendMessage(message);
+            System.out.println("System sent DELETE message.");
+        } catch (MessageSendException e) {
+            e.printInfo();
+            return e.isRetryable() ? "Could not send DELETE, try again" : "Could not send DELETE";
+        }
 
         //Delete the file locally
         storage.deleteFile(fileId);
+        restores.remove(fileId);
 
         return "Deleting file...";
 
@@ -133,12 +284,9 @@ public class PeerService implements PeerInterface {
     public String reclaim(int finalSize) {
         // Special case to remove all chunks
         if (finalSize == 0) {
-            ArrayList<String> list = storage.reclaim();
-            for (String id : list) {
-                Message message = new Message(version, "REMOVED", Integer.toString(peerId), id.substring(0, 64), id.substring(64), null);
-                mcControl.sendMessage(message);
-                storage.removeChunk(id);
-                System.out.println("System sent REMOVED message.");
+            ChunkKey key;
+            while ((key = storage.mostReplicated(Integer.MIN_VALUE)) != null) {
+                removeStoredChunk(key);
             }
             storage.updateMax(finalSize);
             return "Cleared all Space";
@@ -153,16 +301,11 @@ public class PeerService implements PeerInterface {
                 storage.updateMax(finalSize);
             }
             else {
-                ArrayList<String> list = storage.reclaim();
-
-                for (String id : list) {
-                    Message message = new Message(version, "REMOVED", Integer.toString(peerId), id.substring(0, 64),
-                            id.substring(64), null);
-                    mcControl.sendMessage(message);
-                    storage.removeChunk(id);
-                    System.out.println("System sent REMOVED message.");
-                    if (storage.getUsedSpace() <= finalSize)
-                        break;
+                // Most over-replicated chunks first
+                ChunkKey key;
+                while (storage.getUsedSpace() > finalSize
+                        && (key = storage.mostReplicated(Integer.MIN_VALUE)) != null) {
+                    removeStoredChunk(key);
                 }
                 storage.updateMax(finalSize);
             }
@@ -177,38 +320,74 @@ public class PeerService implements PeerInterface {
 
         builder.append("Backed up files.\n");
         builder.append("===================================\n");
-        for(Map.Entry<String, FileData> e : storage.getFiles().entrySet()) {
-            FileData fd = e.getValue();
-            builder.append("File id:                \t").append(fd.id).append("\n");
-            builder.append("File path:              \t").append(fd.file.getPath()).append("\n");
-            builder.append("File replication degree:\t").append(fd.replicationDegree).append("\n");
-            builder.append("Chunks:");
-
-            for(ChunkData cd : fd.chunks) {
-                builder.append("\tChunk nr:                         \t").append(cd.nr).append("\n");
-                builder.append("\tChunk replication degree:         \t").append(storage.getReplication(fd.id, cd.nr)).append("\n");
-            }
+        for(Map.Entry<String, CopyOnWriteArrayList<FileData>> e : storage.getVersions().entrySet()) {
+            int fileVersion = 0;
+            for(FileData fd : e.getValue()) {
+                fileVersion++;
+                builder.append("File id:                \t").append(fd.id).append("\n");
+                builder.append("File path:              \t").append(fd.file.getPath()).append("\n");
+                builder.append("File version:           \t").append(fileVersion).append("\n");
+                builder.append("File replication degree:\t").append(fd.replicationDegree).append("\n");
+                BackupPipeline pipeline = backups.get(fd.id);
+                if (pipeline != null) {
+                    builder.append("Backup progress:        \t").append(pipeline).append("\n");
+                }
+                RestoreTask restore = restores.get(fd.id);
+                if (restore != null) {
+                    builder.append("Restore progress:       \t").append(restore).append("\n");
+                }
+                builder.append("Chunks:");
 
-            builder.append("===================================\n");
+                for(int nr = 0; nr < fd.chunkCount; nr++) {
+                    builder.append("\tChunk nr:                         \t").append(nr).append("\n");
+                    builder.append("\tChunk replication degree:         \t").append(storage.getReplication(fd.id, nr)).append("\n");
+                }
+
+                builder.append("===================================\n");
+            }
         }
 
         builder.append("\n");
 
         builder.append("Stored chunks.\n");
         builder.append("===================================\n");
-        for(Map.Entry<String, ChunkData> e : storage.getChunks().entrySet()) {
+        for(Map.Entry<ChunkKey, ChunkData> e : storage.getChunks().entrySet()) {
             ChunkData cd = e.getValue();
             builder.append("Chunk nr:                         \t").append(cd.nr).append("\n");
             builder.append("Chunk replication degree:         \t").append(storage.getReplication(cd.fileId, cd.nr)).append("\n");
             builder.append("===================================\n");
         }
+        builder.append("Pack store:             \t").append(storage.getPacks()).append("\n");
+        builder.append("Chunk cache:            \t").append(storage.getCache().getCapacity()).append(" bytes, ")
+                .append(storage.getCache()).append("\n");
+        builder.append("Metadata log:           \t").append(storage.getLog()).append("\n");
+        builder.append("Storage scan:           \t").append(storage.getScan()).append("\n");
+        builder.append("===================================\n");
+
+        builder.append("\n");
+
+        builder.append("Receiver.\n");
+        builder.append("===================================\n");
+        builder.append("Receive buffers:        \t").append(receiveBuffers).append("\n");
+        builder.append("Workers:                \t").append(dispatcher).append("\n");
+        builder.append("Chunk endpoint:         \t").append(chunkReceiver.getEndpoint()).append("\n");
+        builder.append("Recent CHUNKs:          \t").append(recentChunks).append(", ")
+                .append(suppressedChunks.get()).append(" suppressed\n");
+        builder.append("Timers:                 \t").append(timer.getScheduled()).append(" scheduled, ")
+                .append(repeaters.size()).append(" PUTCHUNK repeaters\n");
+        builder.append("===================================\n");
 
         return builder.toString();
     }
 
     @Override
     public String serialize() {
-        LocalStorage.serialize(storage);
+        try {
+            storage.snapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "Could not write the snapshot";
+        }
         return "done";
     }
 
@@ -217,11 +396,10 @@ public class PeerService implements PeerInterface {
      *
      * @param fileId file id
      * @param nr     chunk number
-     * @param chunk  chunk content
-     * @param size   size of chunk
+     * @param body   chunk content, a slice of the receive buffer
      */
-    public void store(String fileId, int nr, byte[] chunk, int size, int desiredReplication) {
-        if(storage.getRecentRemoved(fileId+nr)) {
+    public void store(String fileId, int nr, ByteBuffer body, int desiredReplication) {
+        if(storage.getRecentRemoved(fileId, nr)) {
             storage.cancelChunkBackup(fileId, nr);
             System.out.println("Recently removed chunks is being backed up by another peer.");
         }
@@ -230,58 +408,137 @@ public class PeerService implements PeerInterface {
         // If chunk is not stored, then store it
         if (storage.getChunk(fileId, nr) == null) {
 
-            // The chunk is not present -> store it
-            ChunkData cd = new ChunkData(fileId, nr, chunk, size);
-            storage.store(cd, desiredReplication);
+            // The chunk is not present -> write it straight from the receive buffer
+            if (!storage.store(fileId, nr, body, desiredReplication)) {
+                System.out.println("Peer could not store chunk.");
+                return;
+            }
             System.out.println("Peer stored chunk.");
 
-
-            Random rand = new Random();
-            int delay = rand.nextInt(401);
-
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                System.out.println("Sleep failed");
-            }
+            // Confirm after the random delay without holding the worker thread
+            timer.schedule(() -> sendStored(fileId, nr), randomDelay(), TimeUnit.MILLISECONDS);
+            return;
         }
 
-        // Send message to confirm chunk is stored
+        sendStored(fileId, nr);
+    }
+
+    /**
+     * Send STORED message to confirm chunk is stored
+     *
+     * @param fileId file id
+     * @param nr     chunk number
+     */
+    private void sendStored(String fileId, int nr) {
         Message message = new Message(version, "STORED", Integer.toString(peerId), fileId, Integer.toString(nr), null);
-        mcControl.sendMessage(message);
-        System.out.println("System sent STORED message.");
+        try {
+            mcControl.sendMessage(message);
+            System.out.println("System sent STORED message.");
+        } catch (MessageSendException e) {
+            e.printInfo();
+        }
     }
 
     /**
      * Get chunk from storage
      *
+     * @param fileId   file id
+     * @param nr       chunk nr
+     * @param endpoint where the initiator receives chunks over TCP, or null to
+     *                 multicast the CHUNK
+     */
+    public void getChunk(String fileId, int nr, InetSocketAddress endpoint) {
+        if (storage.getChunk(fileId, nr) == null) {
+            return;
+        }
+
+        // Every holder gets the GETCHUNK: after the random delay the CHUNK is
+        // only sent if no other holder sent it meanwhile
+        long since = System.currentTimeMillis();
+        timer.schedule(() -> sendChunk(fileId, nr, since, endpoint), randomDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a CHUNK, unless it was seen on the restore channel. A chunk sent
+     * over TCP is only seen by the initiator, which then multicasts a notice,
+     * see noticeChunk
+     *
+     * @param fileId   file id
+     * @param nr       chunk nr
+     * @param since    when the GETCHUNK was received
+     * @param endpoint where the initiator receives chunks over TCP, or null
+     */
+    private void sendChunk(String fileId, int nr, long since, InetSocketAddress endpoint) {
+        if (recentChunks.mightContain(fileId, nr, since)) {
+            suppressedChunks.incrementAndGet();
+            return;
+        }
+
+        if (endpoint != null) {
+            // Only the header is built here, the content is sent from disk,
+            // by a thread of the sender, and multicast if that fails
+            Message message = new Message(version, "CHUNK", Integer.toString(peerId), fileId,
+                    Integer.toString(nr), null);
+            chunkSender.submit(endpoint, message, fileId, nr, () -> multicastChunk(fileId, nr));
+            return;
+        }
+
+        multicastChunk(fileId, nr);
+    }
+
+    /**
+     * Multicast a stored chunk on the restore channel
+     *
      * @param fileId file id
      * @param nr     chunk nr
      */
-    public void getChunk(String fileId, int nr) {
-        ChunkData chunk = storage.getChunk(fileId, nr);
+    private void multicastChunk(String fileId, int nr) {
+        ByteBuffer body = chunkBuffers.lease();
+
+        try {
+            // This peer has the chunk
+            if (storage.readChunk(fileId, nr, body)) {
+                body.flip();
+                Message message = new Message(version, "CHUNK", Integer.toString(peerId), fileId,
+                        Integer.toString(nr), null, body);
+
+                try {
+                    mcRestore.sendMessage(message);
+                    System.out.println("System sent CHUNK message.");
+                } catch (MessageSendException e) {
+                    e.printInfo();
+                }
+            }
+        } finally {
+            chunkBuffers.release(body);
+        }
+    }
 
-        // This peer has the chunk
-        if (chunk != null) {
-            Message message = new Message(version, "CHUNK", Integer.toString(peerId), chunk.fileId,
-                    Integer.toString(chunk.nr), null, chunk.chunk);
+    /**
+     * Record a CHUNK sent by another peer, see sendChunk
+     *
+     * @param fileId file id
+     * @param nr     chunk nr
+     */
+    public void chunkSeen(String fileId, int nr) {
+        recentChunks.add(fileId, nr);
+    }
 
+    /**
+     * Multicast a CHUNK without body for a chunk received over TCP, so the
+     * other holders record it as sent and do not send it again
+     *
+     * @param fileId file id
+     * @param nr     chunk nr
+     */
+    public void noticeChunk(String fileId, int nr) {
+        Message message = new Message(version, "CHUNK", Integer.toString(peerId), fileId,
+                Integer.toString(nr), null);
+        try {
             mcRestore.sendMessage(message);
-            System.out.println("System sent CHUNK message.");
+        } catch (MessageSendException e) {
+            e.printInfo();
         }
-
-        /**
-         * TODO enhancement
-         *
-         * Enhancement: If chunks are large, this protocol may not be desirable: only
-         * one peer needs to receive the chunk, but we are using a multicast channel for
-         * sending the chunk. Can you think of a change to the protocol that would
-         * eliminate this problem, and yet interoperate with non-initiator peers that
-         * implement the protocol described in this section? Your enhancement must use
-         * TCP to get full credit.
-         *
-         * TRANSLATION Enhancement: Use TCP to send chunks
-         */
     }
 
     /**
@@ -299,11 +556,10 @@ public class PeerService implements PeerInterface {
      *
      * @param fileId
      * @param nr
+     * @param senderId peer that removed the chunk
      */
-    public void removed(String fileId, int nr) {
+    public void removed(String fileId, int nr, int senderId) {
         /**
-         * TODO when removed is received repeat backup
-         *
          * Upon receiving this message, a peer that has a local copy of the chunk shall
          * update its local count of this chunk. If this count drops below the desired
          * replication degree of that chunk, it shall initiate the chunk backup
@@ -313,32 +569,52 @@ public class PeerService implements PeerInterface {
          * subprotocol for that file chunk.
          */
 
-        // If peer has chunk, wait random interval
-        ChunkData chunk;
-        if((chunk = storage.getChunk(fileId, nr)) != null) {
-            storage.addRecentRemoved(fileId, nr);
+        storage.recordRemoved(fileId, nr, senderId);
 
-            Random rand = new Random();
-            int delay = rand.nextInt(401);
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                System.out.println("Sleep failed");
-            }
+        // If peer has chunk and it is now under-replicated, continue after a random interval
+        if(storage.getChunk(fileId, nr) != null
+                && storage.getReplication(fileId, nr) < storage.getDesiredReplication(fileId, nr)) {
+            storage.addRecentRemoved(fileId, nr);
+            timer.schedule(() -> removedBackoffExpired(fileId, nr), randomDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
 
+    /**
+     * Continuation of REMOVED once the random delay is over. Starts the chunk
+     * backup unless a PUTCHUNK for the chunk was received during the delay
+     *
+     * @param fileId
+     * @param nr
+     */
+    private void removedBackoffExpired(String fileId, int nr) {
+        // Mapped, the repeater keeps the content until it is done
+        ByteBuffer chunk;
+        if((chunk = storage.mapChunk(fileId, nr)) != null) {
             // If backup not initiated yet, do it
-            if(!storage.getRecentPutchunk(fileId+nr)) {
-                // TODO os proximos todo é porque temos de ir buscar o desired replication
-                // TODO ---------------------------------------------------------------------------------------------------------------\/\/\/\/ WTF
-                Message message = new Message(version, "PUTCHUNK", Integer.toString(peerId), fileId, Integer.toString(nr), Integer.toString(5), chunk.chunk);
-                mcBackup.sendMessage(message);
-            System.out.println("System sent PUTCHUNK message.");
-            // TODO ----------------------------------------------------------------------------\/\/\/\/ WTF no "5"
-                executer.schedule(new PutchunkRepeater(storage, mcBackup, message, 1, fileId, chunk.nr, 5, 4), 1, TimeUnit.SECONDS);
+            if(!storage.getRecentPutchunk(fileId, nr)) {
+                int desiredReplication = storage.getDesiredReplication(fileId, nr);
+                Message message = new Message(version, "PUTCHUNK", Integer.toString(peerId), fileId, Integer.toString(nr), Integer.toString(desiredReplication), chunk);
+                try {
+                    mcBackup.sendMessage(message);
+                    System.out.println("System sent PUTCHUNK message.");
+                } catch (MessageSendException e) {
+                    // The repeater sends it again
+                    e.printInfo();
+                }
+                startRepeater(new PutchunkRepeater(this, message, 1, fileId, nr, desiredReplication, 4, null));
             }
-
-            storage.clearRemoved(fileId+nr);
         }
+
+        storage.clearRemoved(fileId, nr);
+    }
+
+    /**
+     * Random delay of the protocol's back-offs
+     *
+     * @return delay in milliseconds, between 0 and MAX_DELAY
+     */
+    private static long randomDelay() {
+        return ThreadLocalRandom.current().nextInt(MAX_DELAY + 1);
     }
 
     /**
@@ -346,11 +622,17 @@ public class PeerService implements PeerInterface {
      *
      * @param fileId
      * @param nr
-     * @param chunk
+     * @param body chunk content, a slice of the receive buffer
+     * @return true if it was a new chunk of a file being restored
      */
-    public void saveChunk(String fileId, int nr, byte[] chunk) {
-        storage.saveChunk(new ChunkData(fileId, nr, chunk, chunk.length));
-        System.out.println("Peer received new chunk for restoring.");
+    public boolean saveChunk(String fileId, int nr, ByteBuffer body) {
+        // Only chunks of files that are being restored
+        RestoreTask task = restores.get(fileId);
+        if (task != null && task.chunk(nr, body)) {
+            System.out.println("Peer received new chunk for restoring.");
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -360,20 +642,57 @@ public class PeerService implements PeerInterface {
      * @param chunkNo chunk number
      * @param peerId peer
      */
-    public void recordPeerStoredChunk(String fileId, int chunkNo, String peerId) {
-        this.storage.recordStore(fileId, chunkNo, peerId);
+    public void recordPeerStoredChunk(String fileId, int chunkNo, int peerId) {
+        // Repeated STOREDs of the same peer do not count
+        if (!this.storage.recordStore(fileId, chunkNo, peerId)) {
+            return;
+        }
+
+        // Stop repeating the PUTCHUNK as soon as the desired replication is reached
+        ChunkKey key = ChunkKey.find(fileId, chunkNo);
+        PutchunkRepeater repeater = key == null ? null : repeaters.get(key);
+        if (repeater != null) {
+            repeater.stored(storage.getReplication(fileId, chunkNo));
+        }
     }
 
     /**
-     * Check if chunk is stored in given peer
+     * Schedule the repetitions of a PUTCHUNK, replacing those of a previous
+     * PUTCHUNK for the same chunk
      *
-     * @param fileId file id
+     * @param repeater repeater of the message
+     */
+    private void startRepeater(PutchunkRepeater repeater) {
+        PutchunkRepeater previous = repeaters.put(ChunkKey.of(repeater.getFileId(), repeater.getNr()), repeater);
+        if (previous != null) {
+            previous.cancel();
+        }
+        repeater.schedule();
+    }
+
+    /**
+     * Stop repeating the PUTCHUNK of a chunk, if it is repeated
+     *
+     * @param fileId  file id
      * @param chunkNo chunk number
-     * @param peerId peer
-     * @return
      */
-    public boolean testPeerStoredChunk(String fileId, int chunkNo, String peerId) {
-        return storage.testStoredChunkInPeer(fileId, chunkNo, peerId);
+    void cancelRepeater(String fileId, int chunkNo) {
+        ChunkKey key = ChunkKey.find(fileId, chunkNo);
+        PutchunkRepeater repeater = key == null ? null : repeaters.get(key);
+        if (repeater != null) {
+            repeater.cancel();
+        }
+    }
+
+    /**
+     * Called by a repeater once it stops repeating
+     *
+     * @param fileId   file id
+     * @param chunkNo  chunk number
+     * @param repeater the finished repeater
+     */
+    void repeaterFinished(String fileId, int chunkNo, PutchunkRepeater repeater) {
+        repeaters.remove(ChunkKey.of(fileId, chunkNo), repeater);
     }
 
     /**
@@ -387,18 +706,46 @@ public class PeerService implements PeerInterface {
     }
 
     /**
-     * Remove all chunks with higher replication than desired
+     * Remove chunks with higher replication than desired, most replicated
+     * first, until there is space for a new chunk
+     *
+     * @param size size of the new chunk
+     */
+    public void cleanup(long size) {
+        ChunkKey key;
+        while (storage.getAvailableSpace() - size <= 0 && (key = storage.mostReplicated(0)) != null) {
+            removeStoredChunk(key);
+        }
+    }
+
+    /**
+     * Remove a stored chunk and tell the other peers
+     *
+     * @param key chunk key
+     */
+    private void removeStoredChunk(ChunkKey key) {
+        // Another worker may be removing the same chunk, only the one that does tells
+        if (!storage.removeChunk(key)) {
+            return;
+        }
+
+        Message message = new Message(version, "REMOVED", Integer.toString(peerId), key.getFileId(),
+                Integer.toString(key.nr), null);
+        sendRemoved(message);
+    }
+
+    /**
+     * Send REMOVED message. The chunk is removed even if the message could not
+     * be sent, the other peers only lose an update of the replication count
+     *
+     * @param message REMOVED message
      */
-    public void cleanup() {
-        // Get list of all unneeded chunks with actual replication above desired
-        // replication
-        ArrayList<String> list = storage.reclaim(0);
-        for (String id : list) {
-            Message message = new Message(version, "REMOVED", Integer.toString(peerId), id.substring(0, 64),
-                    id.substring(64), null);
+    private void sendRemoved(Message message) {
+        try {
             mcControl.sendMessage(message);
             System.out.println("System sent REMOVED message.");
-            storage.removeChunk(id);
+        } catch (MessageSendException e) {
+            e.printInfo();
         }
     }
 }
@@ -1,40 +1,150 @@
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PutchunkRepeater implements Runnable {
-  final private LocalStorage storage;
-  final private MulticastBackup multicast;
+  /**
+   * Follows the progress of the repeater
+   */
+  public interface Listener {
+    /**
+     * The PUTCHUNK was sent again because the chunk was not replicated in time
+     *
+     * @param nr chunk number
+     */
+    void retried(int nr);
+
+    /**
+     * The repeater stopped, it is called once
+     *
+     * @param nr         chunk number
+     * @param replicated true if the desired replication degree was reached
+     */
+    void finished(int nr, boolean replicated);
+  }
+
+  final private PeerService peer;
   final private Message message;
   final private String fileId;
   final private int nr;
   final private int repDegree;
   final private int timesToRepeat;
+  final private Listener listener;
+  final private AtomicBoolean finished;
   private int delay;
   private int timesRun;
+  private volatile TimerWheel.Timeout timeout;
 
-  public PutchunkRepeater(LocalStorage storage, MulticastBackup multicast, Message message, int delay, String fileId, int nr, int repDegree, int timesToRepeat) {
-    this.storage = storage;
-    this.multicast = multicast;
+  /**
+   * Constructor for PutchunkRepeater class. It sends the PUTCHUNK message
+   * again, doubling the delay each time, until the chunk reaches the desired
+   * replication degree or it was repeated timesToRepeat times.
+   *
+   * @param peer          peer that sent the message
+   * @param message       PUTCHUNK message
+   * @param delay         delay before the first repetition, in seconds
+   * @param fileId        file id
+   * @param nr            chunk number
+   * @param repDegree     desired replication degree
+   * @param timesToRepeat maximum number of repetitions
+   * @param listener      told about the repetitions and the end, may be null
+   */
+  public PutchunkRepeater(PeerService peer, Message message, int delay, String fileId, int nr, int repDegree, int timesToRepeat, Listener listener) {
+    this.peer = peer;
     this.message = message;
     this.delay = delay;
     this.fileId = fileId;
     this.nr = nr;
     this.repDegree = repDegree;
     this.timesToRepeat = timesToRepeat;
+    this.listener = listener;
+    this.finished = new AtomicBoolean();
     this.timesRun = 0;
   }
 
+  public String getFileId() {
+    return fileId;
+  }
+
+  public int getNr() {
+    return nr;
+  }
+
+  /**
+   * Schedule the next repetition
+   */
+  public void schedule() {
+    if (!finished.get()) {
+      timeout = PeerService.timer.schedule(this, delay, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Called when a STORED for the chunk is received. Cancels the pending
+   * repetition as soon as the desired replication degree is reached
+   *
+   * @param currentRepDegree replication degree of the chunk
+   * @return true if the repeater finished
+   */
+  public boolean stored(int currentRepDegree) {
+    if (currentRepDegree < repDegree) {
+      return false;
+    }
+
+    finish(true);
+    return true;
+  }
+
+  /**
+   * Stop repeating the message
+   */
+  public void cancel() {
+    finish(false);
+  }
+
+  private void finish(boolean replicated) {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+
+    TimerWheel.Timeout t = timeout;
+    if (t != null) {
+      t.cancel();
+    }
+    peer.repeaterFinished(fileId, nr, this);
+
+    if (listener != null) {
+      listener.finished(nr, replicated);
+    }
+  }
+
   @Override
   public void run() {
-    int currentRepDegree = storage.getReplication(fileId, nr);
+    if (finished.get()) {
+      return;
+    }
+
+    int currentRepDegree = peer.storage.getReplication(fileId, nr);
     if(currentRepDegree < repDegree) {
-      multicast.sendMessage(message);
-      System.out.println("System repeated PUTCHUNK message.");
+      if (listener != null) {
+        listener.retried(nr);
+      }
+
+      try {
+        peer.mcBackup.sendMessage(message);
+        System.out.println("System repeated PUTCHUNK message.");
+      } catch (MessageSendException e) {
+        // Counts as an attempt, the next one is still scheduled
+        e.printInfo();
+      }
 
       timesRun += 1;
       delay *= 2;
       if(timesRun < timesToRepeat) {
-        PeerService.executer.schedule(this, delay, TimeUnit.SECONDS);
+        schedule();
+        return;
       }
     }
+
+    finish(currentRepDegree >= repDegree);
   }
 }
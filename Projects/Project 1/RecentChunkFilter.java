@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bloom filter of the CHUNKs seen on the restore channel lately, split in
+ * time buckets. A CHUNK is added to the bucket of the current time slot and
+ * looked up in the buckets since a given time, so an answer seen before a
+ * GETCHUNK was repeated does not count for the repetition. The buckets are
+ * used round robin and a bucket is replaced by an empty one when its slot
+ * comes again, so the filter covers the last span milliseconds in a fixed
+ * amount of memory. Bits are set with compare-and-set, without locks.
+ * Like any Bloom filter it may answer that a chunk was seen when it was not,
+ * never the opposite.
+ */
+public class RecentChunkFilter {
+  // Bits of a bucket, a power of two, can be set with -Dsdis.chunkfilter.bits=<n>
+  final static int BITS = Integer.highestOneBit(Integer.getInteger("sdis.chunkfilter.bits", 8192));
+  final static int HASHES = 3;
+
+  /**
+   * Filter of one time slot
+   */
+  private static class Bucket {
+    final long slot;
+    final AtomicLongArray words;
+
+    Bucket(long slot) {
+      this.slot = slot;
+      this.words = new AtomicLongArray(BITS / Long.SIZE);
+    }
+
+    void set(int bit) {
+      int word = bit >>> 6;
+      long mask = 1L << bit;
+      long current;
+      do {
+        current = words.get(word);
+      } while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask));
+    }
+
+    boolean get(int bit) {
+      return (words.get(bit >>> 6) & (1L << bit)) != 0;
+    }
+  }
+
+  final private AtomicReferenceArray<Bucket> buckets;
+  final private long slotMillis;
+  final private AtomicLong added;
+
+  /**
+   * @param span    time a CHUNK is remembered, at least, in milliseconds
+   * @param buckets number of time slots the span is split in
+   */
+  public RecentChunkFilter(long span, int buckets) {
+    this.buckets = new AtomicReferenceArray<>(buckets + 1);
+    this.slotMillis = Math.max(1, span / buckets);
+    this.added = new AtomicLong();
+  }
+
+  /**
+   * Record that a CHUNK was seen now
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   */
+  public void add(String fileId, int nr) {
+    long slot = System.currentTimeMillis() / slotMillis;
+    int index = (int) (slot % buckets.length());
+
+    Bucket bucket;
+    while ((bucket = buckets.get(index)) == null || bucket.slot < slot) {
+      // Left from a previous round, or never used
+      buckets.compareAndSet(index, bucket, new Bucket(slot));
+    }
+
+    long hash = hash(fileId, nr);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      bucket.set((h1 + i * h2) & (BITS - 1));
+    }
+    added.incrementAndGet();
+  }
+
+  /**
+   * Test if a CHUNK may have been seen since some time, which must be less
+   * than the span ago
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @param since  time, as given by System.currentTimeMillis
+   * @return false if it was not seen, true if it was or, rarely, if it was not
+   */
+  public boolean mightContain(String fileId, int nr, long since) {
+    long from = since / slotMillis;
+    long hash = hash(fileId, nr);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+
+    for (int b = 0; b < buckets.length(); b++) {
+      Bucket bucket = buckets.get(b);
+      if (bucket == null || bucket.slot < from) {
+        continue;
+      }
+
+      boolean all = true;
+      for (int i = 0; i < HASHES && all; i++) {
+        all = bucket.get((h1 + i * h2) & (BITS - 1));
+      }
+      if (all) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 64 bit hash of a chunk, whose halves are used for double hashing
+   */
+  private static long hash(String fileId, int nr) {
+    long h = fileId.hashCode() * 0x9E3779B97F4A7C15L + nr;
+    // Finalizer of SplitMix64
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+  @Override
+  public String toString() {
+    return "seen=" + added.get();
+  }
+}
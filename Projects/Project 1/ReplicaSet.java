@@ -0,0 +1,140 @@
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of the peers that store a chunk. Peer ids below MAX_BIT_ID are bits of
+ * an atomic bitset, updated with compare-and-set, so recording a STORED
+ * neither locks nor copies. Larger ids, which are rare, go to a concurrent
+ * set created when the first one is added. The count is the population
+ * count of the bitset plus the size of that set.
+ */
+public class ReplicaSet {
+  final static int WORDS = 4;
+  final static int MAX_BIT_ID = WORDS * Long.SIZE;
+
+  final private AtomicLongArray bits;
+  private volatile Set<Integer> overflow;
+
+  public ReplicaSet() {
+    this.bits = new AtomicLongArray(WORDS);
+  }
+
+  /**
+   * Add a peer
+   *
+   * @param peerId peer id
+   * @return true if the peer was not in the set
+   */
+  public boolean add(int peerId) {
+    if (peerId < 0 || peerId >= MAX_BIT_ID) {
+      return this.overflow().add(peerId);
+    }
+
+    int word = peerId >>> 6;
+    long mask = 1L << peerId;
+    long current;
+    do {
+      current = bits.get(word);
+      if ((current & mask) != 0) {
+        return false;
+      }
+    } while (!bits.compareAndSet(word, current, current | mask));
+    return true;
+  }
+
+  /**
+   * Remove a peer
+   *
+   * @param peerId peer id
+   * @return true if the peer was in the set
+   */
+  public boolean remove(int peerId) {
+    if (peerId < 0 || peerId >= MAX_BIT_ID) {
+      Set<Integer> set = overflow;
+      return set != null && set.remove(peerId);
+    }
+
+    int word = peerId >>> 6;
+    long mask = 1L << peerId;
+    long current;
+    do {
+      current = bits.get(word);
+      if ((current & mask) == 0) {
+        return false;
+      }
+    } while (!bits.compareAndSet(word, current, current & ~mask));
+    return true;
+  }
+
+  /**
+   * Test if a peer is in the set
+   *
+   * @param peerId peer id
+   * @return true if it is
+   */
+  public boolean contains(int peerId) {
+    if (peerId < 0 || peerId >= MAX_BIT_ID) {
+      Set<Integer> set = overflow;
+      return set != null && set.contains(peerId);
+    }
+
+    return (bits.get(peerId >>> 6) & (1L << peerId)) != 0;
+  }
+
+  /**
+   * Number of peers in the set
+   *
+   * @return replication count
+   */
+  public int count() {
+    int count = 0;
+    for (int i = 0; i < WORDS; i++) {
+      count += Long.bitCount(bits.get(i));
+    }
+
+    Set<Integer> set = overflow;
+    return set == null ? count : count + set.size();
+  }
+
+  /**
+   * Ids of the peers in the set
+   *
+   * @return peer ids
+   */
+  public int[] toArray() {
+    Set<Integer> set = overflow;
+    int[] peers = new int[this.count()];
+    int n = 0;
+    for (int i = 0; i < WORDS; i++) {
+      long word = bits.get(i);
+      while (word != 0 && n < peers.length) {
+        peers[n++] = i * Long.SIZE + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+    if (set != null) {
+      for (int peerId : set) {
+        if (n == peers.length) {
+          break;
+        }
+        peers[n++] = peerId;
+      }
+    }
+    // Peers may have left meanwhile
+    return n == peers.length ? peers : Arrays.copyOf(peers, n);
+  }
+
+  private Set<Integer> overflow() {
+    Set<Integer> set = overflow;
+    if (set == null) {
+      synchronized (this) {
+        if ((set = overflow) == null) {
+          set = overflow = ConcurrentHashMap.newKeySet();
+        }
+      }
+    }
+    return set;
+  }
+}
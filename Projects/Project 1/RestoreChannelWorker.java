@@ -1,14 +1,24 @@
+import java.nio.ByteBuffer;
+
 public class RestoreChannelWorker extends ChannelWorker {
-    public RestoreChannelWorker(PeerService peer, byte[] msg, int msgLen) {
-        super(peer, msg, msgLen);
+    // Whether the message came over TCP, see ChunkReceiver
+    final private boolean unicast;
+
+    public RestoreChannelWorker(PeerService peer, ByteBuffer msg, int msgLen, BufferPool pool) {
+        this(peer, msg, msgLen, pool, false);
+    }
+
+    public RestoreChannelWorker(PeerService peer, ByteBuffer msg, int msgLen, BufferPool pool, boolean unicast) {
+        super(peer, msg, msgLen, pool);
+        this.unicast = unicast;
     }
 
     @Override
-    public void run() {
+    protected void process() {
         try {
-            Message msg = Message.parseMessage(this.msg,msgLen);
+            MessageView msg = MessageView.local().wrap(this.msg, msgLen);
 
-            if (Integer.parseInt(msg.getSenderId()) == peer.peerId) {
+            if (msg.getSenderId() == peer.peerId) {
                 return;
             }
 
@@ -26,8 +36,12 @@ public class RestoreChannelWorker extends ChannelWorker {
         }
     }
 
-    private void parseChunk(Message msg) {
+    private void parseChunk(MessageView msg) {
         System.out.println("System received CHUNK message.");
-        peer.saveChunk(msg.getFileId(), Integer.parseInt(msg.getChunckNo()), msg.getBody());
+        peer.chunkSeen(msg.getFileId(), msg.getChunkNo());
+        if (peer.saveChunk(msg.getFileId(), msg.getChunkNo(), msg.getBody()) && unicast) {
+            // The other holders did not see it, they would send it too
+            peer.noticeChunk(msg.getFileId(), msg.getChunkNo());
+        }
     }
 }
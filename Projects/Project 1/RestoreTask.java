@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restore of a backed up file. Every CHUNK is written at its offset in a
+ * temporary file next to the restored one as soon as it arrives, so the
+ * chunks are neither kept in memory nor expected in order. Every holder of a
+ * chunk answers, so the same chunk arrives several times: the first copy
+ * claims the chunk in a lock-free bitmap and the others are dropped before
+ * their payload is read. Once every chunk is written the temporary file is
+ * forced and renamed over the restored one.
+ * GETCHUNKs are sent as the congestion window allows, so the holders are not
+ * asked for the whole file at once: a chunk leaves the window when it
+ * arrives, which opens it, and a GETCHUNK that gets no answer in
+ * RETRY_TIMEOUT is sent again and closes it. The restore fails when a chunk
+ * was asked for MAX_RETRIES times more without an answer, or could not be
+ * written.
+ */
+public class RestoreTask implements Runnable {
+  static final long RETRY_TIMEOUT = Long.getLong("sdis.restore.timeout", 1000);
+  static final int MAX_RETRIES = Integer.getInteger("sdis.restore.retries", 5);
+  static final int INITIAL_WINDOW = Integer.getInteger("sdis.restore.window.initial", 4);
+  static final int MAX_WINDOW = Integer.getInteger("sdis.restore.window", 64);
+
+  final private PeerService peer;
+  final private FileData fd;
+  final private Path target;
+  final private Path temp;
+
+  private volatile FileChannel channel;
+  final private ChunkBitmap received;
+  final private ChunkBitmap requested;
+  // Chunks whose place in the window was given back
+  final private ChunkBitmap settled;
+  final private AtomicInteger written;
+  // Set once, by whoever finishes or fails the restore
+  final private AtomicBoolean over;
+  final private CongestionWindow window;
+  // Retries of each chunk, only used by its timeouts, which run one after the other
+  final private int[] retries;
+  private Thread sender;
+
+  final private AtomicInteger retransmissions;
+  final private AtomicLong bytesWritten;
+  private volatile long startTime;
+  private volatile long endTime;
+
+  public RestoreTask(PeerService peer, FileData fd) {
+    this.peer = peer;
+    this.fd = fd;
+    this.target = fd.file.toPath();
+    this.temp = target.resolveSibling(target.getFileName() + ".restoring");
+    this.received = new ChunkBitmap(fd.chunkCount);
+    this.requested = new ChunkBitmap(fd.chunkCount);
+    this.settled = new ChunkBitmap(fd.chunkCount);
+    this.written = new AtomicInteger();
+    this.over = new AtomicBoolean();
+    // Losses of the same window count once
+    this.window = new CongestionWindow(INITIAL_WINDOW, 1, MAX_WINDOW, RETRY_TIMEOUT);
+    this.retries = new int[fd.chunkCount];
+    this.retransmissions = new AtomicInteger();
+    this.bytesWritten = new AtomicLong();
+  }
+
+  /**
+   * Create the temporary file and start asking for the chunks
+   *
+   * @throws IOException if the temporary file can not be created
+   */
+  public void start() throws IOException {
+    startTime = System.currentTimeMillis();
+    channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+
+    sender = new Thread(this, "restore-" + fd.id.substring(0, 8));
+    sender.start();
+  }
+
+  @Override
+  public void run() {
+    for (int nr = 0; nr < fd.chunkCount && !over.get(); nr++) {
+      // Already sent for someone else's GETCHUNK
+      if (received.get(nr)) {
+        continue;
+      }
+
+      try {
+        window.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      requested.claim(nr);
+      if (received.get(nr)) {
+        // Arrived meanwhile, the place is given back here or by chunk
+        if (settled.claim(nr)) {
+          window.release();
+        }
+        continue;
+      }
+      this.request(nr);
+    }
+  }
+
+  /**
+   * Send the GETCHUNK of a chunk and wait for it for RETRY_TIMEOUT
+   *
+   * @param nr chunk number
+   */
+  private void request(int nr) {
+    peer.sendGetchunk(fd.id, nr);
+    PeerService.timer.schedule(() -> this.timedOut(nr), RETRY_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send a GETCHUNK again if its chunk did not arrive, it keeps its place in
+   * the window
+   *
+   * @param nr chunk number
+   */
+  private void timedOut(int nr) {
+    if (over.get() || received.get(nr)) {
+      return;
+    }
+
+    window.lost();
+    if (++retries[nr] > MAX_RETRIES) {
+      if (over.compareAndSet(false, true)) {
+        this.fail();
+      }
+      return;
+    }
+
+    retransmissions.incrementAndGet();
+    this.request(nr);
+  }
+
+  /**
+   * Write a received chunk at its offset. Only the first copy of a chunk is
+   * written, the others, sent by the other peers that store it, are dropped
+   *
+   * @param nr   chunk number
+   * @param body chunk content, which is consumed
+   * @return true if the chunk was written
+   */
+  public boolean chunk(int nr, ByteBuffer body) {
+    FileChannel channel = this.channel;
+    int length = body.remaining();
+    // The CHUNKs without body that notice a chunk sent over TCP are not copies
+    if (channel == null || over.get() || length != FileData.chunkSize(fd.size, nr) || !received.claim(nr)) {
+      return false;
+    }
+
+    try {
+      long position = (long) nr * FileData.MAX_CHUNK_SIZE;
+      while (body.hasRemaining()) {
+        position += channel.write(body, position);
+      }
+    } catch (IOException e) {
+      // The timeouts of the chunk stopped when it was claimed, and the disk
+      // that failed this write would likely fail the next one
+      e.printStackTrace();
+      if (over.compareAndSet(false, true)) {
+        this.fail();
+      }
+      return false;
+    }
+    bytesWritten.addAndGet(length);
+    if (requested.get(nr) && settled.claim(nr)) {
+      window.acked();
+    }
+
+    // Each chunk is counted once, by the thread that claimed it
+    if (written.incrementAndGet() == fd.chunkCount && over.compareAndSet(false, true)) {
+      this.finish();
+    }
+    return true;
+  }
+
+  private void finish() {
+    try {
+      channel.force(true);
+      channel.close();
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      endTime = System.currentTimeMillis();
+      System.out.println("Restore of " + target + " finished: " + this);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.out.println("Failed restoring file.");
+    }
+  }
+
+  private void fail() {
+    sender.interrupt();
+    try {
+      channel.close();
+      Files.deleteIfExists(temp);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.out.println("Failed restoring file: " + this);
+  }
+
+  public boolean isDone() {
+    return endTime != 0;
+  }
+
+  /**
+   * Whether the restore finished or failed
+   *
+   * @return true once it is over
+   */
+  public boolean isOver() {
+    return over.get();
+  }
+
+  /**
+   * Throughput of the chunks written so far
+   *
+   * @return bytes per second
+   */
+  public long getThroughput() {
+    long end = isDone() ? endTime : System.currentTimeMillis();
+    long elapsed = Math.max(1, end - startTime);
+    return bytesWritten.get() * 1000 / elapsed;
+  }
+
+  @Override
+  public String toString() {
+    return written.get() + "/" + fd.chunkCount + " chunks restored, "
+            + retransmissions.get() + " retransmissions, "
+            + "window " + window.getWindow() + ", "
+            + getThroughput() / 1000 + " KB/s";
+  }
+}
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Import of the chunks found in peerN/storage as one file each, named
+ * <fileId>_<nr>, which is how they were stored before the pack store. Every
+ * file is appended to the pack store, recorded in the catalogue and deleted.
+ * The folder is scanned in the background by fork/join tasks over its
+ * entries, so the peer starts before the scan is over. Until then a chunk
+ * that is not in the catalogue is looked up in the folder and imported on
+ * demand (see importChunk), so it can be served right away.
+ */
+public class StorageScan {
+  // Files imported by a task once the entries are split this small
+  final static int BATCH = 16;
+  // Locks a chunk file is imported or discarded under, picked by the hash of its key
+  final static int LOCK_STRIPES = 64;
+  // Name of a chunk file, chunk numbers have at most 6 digits
+  final static Pattern CHUNK_FILE = Pattern.compile("[0-9A-F]{64}_\\d{1,6}");
+
+  final private Path dir;
+  final private LocalStorage storage;
+  final private AtomicInteger imported;
+  final private AtomicInteger failed;
+  // ChunkKey instances are not canonical once a file handle is forgotten, so
+  // equal keys share a lock instead of each key being its own
+  final private Object[] locks;
+  private volatile boolean pending;
+
+  /**
+   * @param dir     folder of the chunk files
+   * @param storage storage the chunks are imported into
+   */
+  public StorageScan(Path dir, LocalStorage storage) {
+    this.dir = dir;
+    this.storage = storage;
+    this.imported = new AtomicInteger();
+    this.failed = new AtomicInteger();
+    this.locks = new Object[LOCK_STRIPES];
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+    // The folder always holds the packs, only chunk files make a scan
+    this.pending = this.hasChunkFiles();
+  }
+
+  /**
+   * Whether there is a chunk file in the folder
+   */
+  private boolean hasChunkFiles() {
+    if (!Files.isDirectory(dir)) {
+      return false;
+    }
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, StorageScan::isChunkFile)) {
+      return stream.iterator().hasNext();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private static boolean isChunkFile(Path path) {
+    return CHUNK_FILE.matcher(path.getFileName().toString()).matches();
+  }
+
+  /**
+   * Start the scan in the background
+   */
+  public void start() {
+    if (!pending) {
+      return;
+    }
+
+    Thread thread = new Thread(this::run, "storage-scan");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run() {
+    ForkJoinPool pool = new ForkJoinPool(PackStore.SCAN_THREADS);
+    List<Path> files = null;
+    try {
+      files = this.list();
+      if (!files.isEmpty()) {
+        System.out.println("Importing " + files.size() + " chunk files from " + dir);
+        pool.invoke(new ImportTask(files, 0, files.size()));
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      pool.shutdown();
+      pending = false;
+    }
+
+    if (files != null && !files.isEmpty()) {
+      System.out.println("Imported chunk files: " + this);
+    }
+  }
+
+  /**
+   * Chunk files in the folder
+   */
+  private List<Path> list() throws IOException {
+    ArrayList<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, StorageScan::isChunkFile)) {
+      for (Path path : stream) {
+        files.add(path);
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Import of a range of files, split in halves down to BATCH files
+   */
+  private class ImportTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final List<Path> files;
+    final int from;
+    final int to;
+
+    ImportTask(List<Path> files, int from, int to) {
+      this.files = files;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH) {
+        for (int i = from; i < to; i++) {
+          String name = files.get(i).getFileName().toString();
+          int split = name.lastIndexOf('_');
+          importChunk(ChunkKey.of(name.substring(0, split),
+                  Integer.parseInt(name.substring(split + 1))));
+        }
+        return;
+      }
+
+      int middle = (from + to) >>> 1;
+      invokeAll(new ImportTask(files, from, middle), new ImportTask(files, middle, to));
+    }
+  }
+
+  /**
+   * Whether the scan may still find chunks
+   *
+   * @return true until the scan is over
+   */
+  public boolean isPending() {
+    return pending;
+  }
+
+  /**
+   * Whether the folder has a file for a chunk
+   *
+   * @param fileId file id
+   * @param nr     chunk number
+   * @return true if it has
+   */
+  public boolean exists(String fileId, int nr) {
+    return pending && Files.exists(dir.resolve(fileId + "_" + nr));
+  }
+
+  /**
+   * Import the file of a chunk, if it was not imported yet. The scan and
+   * the lookups of the chunk import it under the lock of its key, so only
+   * one of them does
+   *
+   * @param key chunk key
+   * @return true if the file was imported by this call
+   */
+  public boolean importChunk(ChunkKey key) {
+    Path path = dir.resolve(key.toString());
+    synchronized (this.lock(key)) {
+      if (!Files.exists(path)) {
+        return false;
+      }
+
+      try {
+        storage.importChunk(key, ByteBuffer.wrap(Files.readAllBytes(path)));
+        Files.delete(path);
+        imported.incrementAndGet();
+        return true;
+      } catch (IOException e) {
+        e.printStackTrace();
+        failed.incrementAndGet();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Drop the file of a chunk that was removed before it was imported
+   *
+   * @param key chunk key
+   */
+  public void discard(ChunkKey key) {
+    if (!pending) {
+      return;
+    }
+
+    synchronized (this.lock(key)) {
+      try {
+        Files.deleteIfExists(dir.resolve(key.toString()));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Drop the files of the chunks of a deleted file
+   *
+   * @param fileId file id
+   */
+  public void discardFile(String fileId) {
+    if (!pending) {
+      return;
+    }
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, fileId + "_*")) {
+      for (Path path : stream) {
+        if (!isChunkFile(path)) {
+          continue;
+        }
+        String name = path.getFileName().toString();
+        this.discard(ChunkKey.of(fileId, Integer.parseInt(name.substring(name.lastIndexOf('_') + 1))));
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private Object lock(ChunkKey key) {
+    return locks[(key.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+  }
+
+  @Override
+  public String toString() {
+    return "imported=" + imported.get() + " failed=" + failed.get() + (pending ? " (scanning)" : "");
+  }
+}
@@ -0,0 +1,84 @@
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Index of the chunks stored by this peer by surplus, the difference
+ * between their actual and desired replication. LocalStorage refreshes it
+ * with the chunks whose replication changed before it is queried, so finding
+ * the most over-replicated chunk is O(log n) instead of sorting every chunk.
+ * Chunks with the same surplus are ordered by the time they entered it.
+ */
+public class SurplusIndex {
+  private static class Entry {
+    final ChunkKey key;
+    final int surplus;
+    final long seq;
+
+    Entry(ChunkKey key, int surplus, long seq) {
+      this.key = key;
+      this.surplus = surplus;
+      this.seq = seq;
+    }
+  }
+
+  final private TreeSet<Entry> bySurplus;
+  final private HashMap<ChunkKey, Entry> entries;
+  private long seq;
+
+  public SurplusIndex() {
+    this.bySurplus = new TreeSet<>((a, b) -> a.surplus != b.surplus
+            ? Integer.compare(b.surplus, a.surplus) : Long.compare(a.seq, b.seq));
+    this.entries = new HashMap<>();
+  }
+
+  /**
+   * Set the surplus of a chunk, adding it if needed
+   *
+   * @param key     chunk key
+   * @param surplus actual minus desired replication
+   */
+  public synchronized void update(ChunkKey key, int surplus) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      if (entry.surplus == surplus) {
+        return;
+      }
+      bySurplus.remove(entry);
+    }
+
+    entry = new Entry(key, surplus, seq++);
+    entries.put(key, entry);
+    bySurplus.add(entry);
+  }
+
+  /**
+   * Remove a chunk
+   *
+   * @param key chunk key
+   */
+  public synchronized void remove(ChunkKey key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bySurplus.remove(entry);
+    }
+  }
+
+  /**
+   * Return the chunk with the highest surplus, if that surplus is above diff
+   *
+   * @param diff minimum surplus, exclusive
+   * @return the chunk key, or null if no chunk has a surplus above diff
+   */
+  public synchronized ChunkKey highest(int diff) {
+    if (bySurplus.isEmpty()) {
+      return null;
+    }
+
+    Entry entry = bySurplus.first();
+    return entry.surplus > diff ? entry.key : null;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+}
@@ -39,12 +39,23 @@ public class TestApp {
                   return;
 
               case "RESTORE":
+                  if (args.length != 3 && args.length != 4) {
+                      printUsage();
+                      System.out.println("Invalid RESTORE: arguments are <file_path> [<version>]");
+                  }
+                  else {
+                      String res = args.length == 3 ? stub.restore(args[2]) : stub.restore(args[2], Integer.parseInt(args[3]));
+                      System.out.println(res);
+                  }
+                  return;
+
+              case "VERSIONS":
                   if (args.length != 3) {
                       printUsage();
-                      System.out.println("Invalid RESTORE: argument is <file_path>");
+                      System.out.println("Invalid VERSIONS: argument is <file_path>");
                   }
                   else {
-                      String res = stub.restore(args[2]);
+                      String res = stub.versions(args[2]);
                       System.out.println(res);
                   }
                   return;
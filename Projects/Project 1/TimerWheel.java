@@ -0,0 +1,239 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel. Scheduling and cancelling a task are O(1): a task is
+ * put in the bucket of the tick it expires in, together with the number of
+ * whole turns of the wheel left before it is due. One thread advances the
+ * wheel a tick at a time and hands the expired tasks to a small fixed pool,
+ * so a slow task never delays the wheel. Tasks run at most one tick late.
+ */
+public class TimerWheel {
+  private static final int INIT = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  /**
+   * Handle of a scheduled task, used to cancel it
+   */
+  public static class Timeout {
+    final private TimerWheel wheel;
+    final private Runnable task;
+    final private long deadline;
+    final private AtomicInteger state;
+
+    // Owned by the wheel thread
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout next;
+    private Timeout prev;
+
+    private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+      this.wheel = wheel;
+      this.task = task;
+      this.deadline = deadline;
+      this.state = new AtomicInteger(INIT);
+    }
+
+    /**
+     * Cancel the task if it has not run yet
+     *
+     * @return true if the task was cancelled by this call
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(INIT, CANCELLED)) {
+        return false;
+      }
+
+      wheel.cancelled.add(this);
+      return true;
+    }
+
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+  }
+
+  /**
+   * Doubly linked list of the timeouts of a tick
+   */
+  private static class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    Timeout remove(Timeout timeout) {
+      Timeout next = timeout.next;
+      if (timeout.prev != null) {
+        timeout.prev.next = next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      }
+      if (timeout == head) {
+        head = next;
+      }
+      if (timeout == tail) {
+        tail = timeout.prev;
+      }
+
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+      return next;
+    }
+  }
+
+  final private long tickNanos;
+  final private Bucket[] wheel;
+  final private int mask;
+  final private ExecutorService executor;
+  final private Thread thread;
+  // Handed over to the wheel thread, which is the only one touching the buckets
+  final private ConcurrentLinkedQueue<Timeout> pending;
+  final private ConcurrentLinkedQueue<Timeout> cancelled;
+  final private AtomicInteger scheduled;
+
+  final private long startTime;
+  private long tick;
+
+  /**
+   * @param tickDuration duration of a tick
+   * @param unit         unit of the tick duration
+   * @param wheelSize    number of buckets, rounded up to a power of two
+   * @param threads      number of threads that run the expired tasks
+   */
+  public TimerWheel(long tickDuration, TimeUnit unit, int wheelSize, int threads) {
+    int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      this.wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.pending = new ConcurrentLinkedQueue<>();
+    this.cancelled = new ConcurrentLinkedQueue<>();
+    this.scheduled = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "timer-task");
+      t.setDaemon(true);
+      return t;
+    });
+
+    this.startTime = System.nanoTime();
+    this.thread = new Thread(this::run, "timer-wheel");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Schedule a task to run once after the given delay
+   *
+   * @param task  task to run
+   * @param delay delay before running it
+   * @param unit  unit of the delay
+   * @return handle to cancel the task
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+    Timeout timeout = new Timeout(this, task, deadline);
+
+    scheduled.incrementAndGet();
+    pending.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Number of tasks waiting to run
+   *
+   * @return scheduled task count
+   */
+  public int getScheduled() {
+    return scheduled.get();
+  }
+
+  private void run() {
+    while (true) {
+      long deadline = tickNanos * (tick + 1);
+      long sleep = deadline - (System.nanoTime() - startTime);
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+
+      this.processCancelled();
+      this.transferPending();
+      this.expire(wheel[(int) (tick & mask)]);
+      tick++;
+    }
+  }
+
+  /**
+   * Unlink the cancelled timeouts from their buckets
+   */
+  private void processCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+      scheduled.decrementAndGet();
+    }
+  }
+
+  /**
+   * Put the newly scheduled timeouts in the bucket of the tick they expire in
+   */
+  private void transferPending() {
+    Timeout timeout;
+    while ((timeout = pending.poll()) != null) {
+      if (timeout.isCancelled()) {
+        continue;
+      }
+
+      // Never in a tick that was already processed
+      long expireTick = Math.max(timeout.deadline / tickNanos, tick);
+      timeout.remainingRounds = (expireTick - tick) / wheel.length;
+      wheel[(int) (expireTick & mask)].add(timeout);
+    }
+  }
+
+  private void expire(Bucket bucket) {
+    Timeout timeout = bucket.head;
+    while (timeout != null) {
+      if (timeout.remainingRounds > 0) {
+        timeout.remainingRounds--;
+        timeout = timeout.next;
+        continue;
+      }
+
+      Timeout next = bucket.remove(timeout);
+      if (timeout.state.compareAndSet(INIT, EXPIRED)) {
+        scheduled.decrementAndGet();
+        executor.execute(timeout.task);
+      }
+      timeout = next;
+    }
+  }
+}